@@ -25,6 +25,16 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFutexWait	13
+#define syscallFutexWake	14
+#define syscallFork		15
+#define syscallWaitpid		16
+#define syscallPipe		17
+#define syscallReadv		18
+#define syscallWritev		19
+#define syscallRingSetup	20
+#define syscallRingEnter	21
+#define syscallSbrk		22
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -71,8 +81,9 @@ void exit(int status);
 /**
  * Execute the program stored in the specified file, with the specified
  * arguments, in a new child process. The child process has a new unique
- * process ID, and starts with stdin opened as file descriptor 0, and stdout
- * opened as file descriptor 1.
+ * process ID, and inherits the current process's open file descriptors, so it
+ * starts with stdin and stdout as file descriptors 0 and 1 unless the current
+ * process has changed them.
  *
  * file is a null-terminated string that specifies the name of the file
  * containing the executable. Note that this string must include the ".coff"
@@ -90,6 +101,20 @@ void exit(int status);
  */
 int exec(char *file, int argc, char *argv[]);
 
+/**
+ * Create a new child process that is a copy of the current process. The child
+ * has a new unique process ID, shares the parent's open file descriptors, and
+ * sees a copy of the parent's memory. Pages are copied lazily: parent and
+ * child share each page until one of them writes to it.
+ *
+ * fork() returns the child's process ID in the parent, and 0 in the child.
+ * On error, returns -1.
+ *
+ * fork() is not supported by the demand-paged VM kernel, where it always
+ * returns -1.
+ */
+int fork();
+
 /**
  * Suspend execution of the current process until the child process specified
  * by the processID argument has exited. If the child has already exited by the
@@ -109,6 +134,42 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/* Flag for waitpid(): return at once if no matching child has exited. */
+#define WNOHANG			1
+
+/**
+ * Wait for a child process to exit, and disown it as join() does.
+ *
+ * processID is the process ID of the child to wait for, or -1 to wait for
+ * whichever child exits first. Children that have already exited are returned
+ * in the order they exited.
+ *
+ * status points to an integer where the exit status of the child process will
+ * be stored. A child that exited because of an unhandled exception has exit
+ * status -1.
+ *
+ * flags is 0 or WNOHANG. With WNOHANG, waitpid() does not wait: if no matching
+ * child has exited yet, it returns 0 immediately.
+ *
+ * Returns the process ID of the child that exited. Returns 0 if WNOHANG was
+ * given and no matching child has exited, and -1 if the current process has no
+ * matching child.
+ */
+int waitpid(int processID, int *status, int flags);
+
+/* MEMORY MANAGEMENT SYSCALLS: sbrk() */
+
+/**
+ * Move the end of the heap by delta bytes, growing the heap if delta is
+ * positive and shrinking it if delta is negative. The heap starts out empty,
+ * just above the program's arguments. New heap memory reads as zero; it is
+ * only given physical memory when first touched, as is the stack.
+ *
+ * Returns the previous end of the heap, or (void *) -1 if the heap would
+ * shrink below empty or grow larger than physical memory.
+ */
+void *sbrk(int delta);
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -181,6 +242,34 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/* One buffer of a readv() or writev() call. */
+struct iovec {
+    void *iov_base;
+    int iov_len;
+};
+
+/**
+ * Read from a file into several buffers with one system call. The buffers are
+ * filled in order, as if by consecutive read() calls, and the call returns as
+ * soon as one of them is not filled completely. A pipe is read at most once,
+ * into the first buffer with a non-zero length.
+ *
+ * iov points to an array of iovcnt buffers. At most 16 buffers may be given.
+ *
+ * Returns the total number of bytes read, or -1 if an error occurred.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Write several buffers to a file with one system call, in order, as if by
+ * consecutive write() calls. At most 16 buffers may be given.
+ *
+ * Returns the total number of bytes written, which is the sum of the buffer
+ * lengths, or -1 if an error occurred. As with write(), writing fewer bytes
+ * than requested is an error.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or stream
  * and may be reused.
@@ -214,6 +303,21 @@ int close(int fileDescriptor);
  */
 int unlink(char *name);
 
+/**
+ * Create a pipe: a one-way channel for passing data between processes, held
+ * in a bounded buffer in the kernel. fds[0] is set to a new file descriptor
+ * for reading from the pipe, and fds[1] to a new file descriptor for writing
+ * to it. Both are inherited by children created with exec() or fork().
+ *
+ * read() on an empty pipe waits for data, and then returns what is available.
+ * Once every write descriptor of the pipe is closed, read() of an empty pipe
+ * returns 0. write() waits until all of its data has been accepted; once every
+ * read descriptor of the pipe is closed, write() returns -1.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fds[2]);
+
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
  * may be as large as 0x7FFFFFFF bytes.
@@ -257,6 +361,89 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* BATCHED SYSCALLS: ring_setup, ring_enter
+ *
+ * A syscall ring lets a process queue system calls in its own memory and have
+ * the kernel run them in the background, collecting the results later, rather
+ * than trapping into the kernel for each call.
+ */
+
+/* A queued system call. args are passed as by the syscall's usual stub. */
+struct syscall_sqe {
+    int syscall;
+    int args[3];
+    int user_data;
+};
+
+/* The result of a queued system call, tagged with its user_data. */
+struct syscall_cqe {
+    int user_data;
+    int result;
+};
+
+/* The head of a syscall ring. It is followed in memory by entries
+ * submission slots (struct syscall_sqe) and then entries completion slots
+ * (struct syscall_cqe). Heads and tails only ever increase; entry i is in
+ * slot i % entries.
+ */
+struct syscall_ring {
+    int sq_head;	/* advanced by the kernel */
+    int sq_tail;	/* advanced by the process */
+    int cq_head;	/* advanced by the process */
+    int cq_tail;	/* advanced by the kernel */
+};
+
+/**
+ * Register a syscall ring with room for entries submissions and entries
+ * completions. entries must be between 1 and 64. The ring's counters should
+ * be zero. Only creat(), open(), read(), write(), close() and exec() may be
+ * submitted; any other syscall completes with result -1. A process may
+ * register only one ring.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int ring_setup(struct syscall_ring *ring, int entries);
+
+/**
+ * Have the kernel start running the calls queued on the ring, and wait until
+ * at least minComplete completions are ready or the kernel runs out of queued
+ * calls. Pass 0 to start the calls without waiting. When the completion queue
+ * is full, the kernel stops taking submissions until completions are consumed
+ * and ring_enter() is called again.
+ *
+ * Returns the number of completions ready, or -1 if no ring is registered.
+ */
+int ring_enter(int minComplete);
+
+/* USER-LEVEL SYNCHRONIZATION SYSCALLS: futex_wait, futex_wake
+ *
+ * A futex is an integer in user memory. Threads of a process may spin on it
+ * in user space and only call into the kernel when they have to wait.
+ * Waiters are keyed by the calling process and the address of the integer.
+ *
+ * In this kernel every process has exactly one thread, and futexes are not
+ * shared between processes, so no other thread could ever wake a waiter.
+ * futex_wait() therefore never sleeps and always returns -1, and
+ * futex_wake() always returns 0.
+ */
+
+/**
+ * If the integer at addr still holds expected, put the calling thread to
+ * sleep until another thread calls futex_wake() on the same address.
+ *
+ * Returns 0 after being woken, or -1 if the integer did not hold expected
+ * (or addr is invalid), in which case the caller should re-check its
+ * condition and retry. In this kernel, always returns -1 without sleeping.
+ */
+int futex_wait(int *addr, int expected);
+
+/**
+ * Wake up to count threads sleeping in futex_wait() on addr.
+ *
+ * Returns the number of threads woken, or -1 if an error occurred.
+ */
+int futex_wake(int *addr, int count);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -0,0 +1,218 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of parsed COFF executables. Opening an executable and parsing its
+ * headers costs several reads of the stub file system; with this cache a
+ * repeated <tt>exec()</tt> of the same program reuses the <tt>Coff</tt> (and
+ * its section headers) parsed the first time.
+ *
+ * <p>
+ * Images are kept in least-recently-used order, and at most <tt>capacity</tt>
+ * unused images are kept open. An image is checked against the current length
+ * of its file before it is reused, and is dropped when its file is recreated
+ * or unlinked through the kernel's <tt>FileTable</tt>. An image still in use by
+ * a process is only closed once its last user releases it.
+ *
+ * <p>
+ * Only section metadata is cached. Section contents are still loaded with
+ * <tt>CoffSection.loadPage()</tt>, since the machine requires that pages are
+ * loaded through the COFF loader.
+ */
+public class CoffCache {
+    /**
+     * Allocate a new, empty COFF cache.
+     *
+     * @param capacity the number of executables to keep open.
+     */
+    public CoffCache(int capacity) {
+        Lib.assertTrue(capacity >= 0);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Return the parsed executable with the specified name, opening and parsing
+     * it only if no valid cached copy exists. The caller must eventually pass
+     * the image to <tt>release()</tt>.
+     *
+     * @param name the name of the executable file.
+     * @return the executable image, or <tt>null</tt> if the file could not be
+     *         opened or is not a valid COFF executable.
+     */
+    public Image acquire(String name) {
+        lock.acquire();
+
+        Image image = images.get(name);
+        if (image != null && image.file.length() != image.length) {
+            Lib.debug(dbgCoffCache, "\tstale image " + name);
+            drop(image);
+            image = null;
+        }
+
+        if (image == null) {
+            image = load(name);
+            if (image == null) {
+                lock.release();
+                return null;
+            }
+            images.put(name, image);
+        }
+
+        image.users++;
+        evict();
+
+        lock.release();
+        return image;
+    }
+
+    /**
+     * Add a user to an image that is already in use, as when a forked child
+     * shares its parent's executable.
+     *
+     * @param image the image to share.
+     */
+    public void retain(Image image) {
+        lock.acquire();
+
+        Lib.assertTrue(image.users > 0);
+        image.users++;
+
+        lock.release();
+    }
+
+    /**
+     * Release one user of an image.
+     *
+     * @param image the image returned by <tt>acquire()</tt>.
+     */
+    public void release(Image image) {
+        lock.acquire();
+
+        Lib.assertTrue(image.users > 0);
+        if (--image.users == 0) {
+            if (image.cached)
+                evict();
+            else
+                image.coff.close();
+        }
+
+        lock.release();
+    }
+
+    /**
+     * Forget the cached image of a file whose contents are about to change.
+     *
+     * @param name the name of the file.
+     */
+    public void invalidate(String name) {
+        lock.acquire();
+
+        Image image = images.get(name);
+        if (image != null)
+            drop(image);
+
+        lock.release();
+    }
+
+    /**
+     * Open and parse an executable.
+     */
+    private Image load(String name) {
+        OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+        if (executable == null) {
+            Lib.debug(dbgCoffCache, "\topen failed");
+            return null;
+        }
+
+        try {
+            return new Image(name, executable, new Coff(executable), nextSerial++);
+        } catch (EOFException e) {
+            executable.close();
+            Lib.debug(dbgCoffCache, "\tcoff load failed");
+            return null;
+        }
+    }
+
+    /**
+     * Remove an image from the cache, closing it now if nobody is using it.
+     */
+    private void drop(Image image) {
+        images.remove(image.name);
+        image.cached = false;
+
+        if (image.users == 0)
+            image.coff.close();
+    }
+
+    /**
+     * Close least recently used images, skipping those still in use, until the
+     * cache is back within its capacity.
+     */
+    private void evict() {
+        Iterator<Image> lru = images.values().iterator();
+        while (images.size() > capacity && lru.hasNext()) {
+            Image image = lru.next();
+            if (image.users == 0) {
+                lru.remove();
+                image.cached = false;
+                image.coff.close();
+            }
+        }
+    }
+
+    /**
+     * A parsed executable, shared by every process running it.
+     */
+    public static class Image {
+        private Image(String name, OpenFile file, Coff coff, int serial) {
+            this.name = name;
+            this.file = file;
+            this.coff = coff;
+            this.length = file.length();
+            this.key = name + "#" + serial;
+        }
+
+        /**
+         * Return the parsed executable.
+         *
+         * @return the COFF loader for this image.
+         */
+        public Coff getCoff() {
+            return coff;
+        }
+
+        /**
+         * Return a key that identifies this image. Two images of the same file
+         * have different keys if the file changed in between.
+         *
+         * @return the key for this image.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        private String name;
+        private OpenFile file;
+        private Coff coff;
+        private int length;
+        private String key;
+        private int users = 0;
+        private boolean cached = true;
+    }
+
+    private int capacity;
+    private int nextSerial = 0;
+
+    /** Cached images by file name, least recently used first. */
+    private LinkedHashMap<String, Image> images = new LinkedHashMap<String, Image>(16, 0.75f, true);
+    private Lock lock = new Lock();
+
+    private static final char dbgCoffCache = 'a';
+}
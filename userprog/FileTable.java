@@ -0,0 +1,180 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.HashMap;
+
+/**
+ * The kernel's global open-file table. Every disk file opened by a user process
+ * is opened through this table, which counts how many open instances each file
+ * has. This lets <tt>unlink()</tt> be deferred: a file that is still open when
+ * it is unlinked stays in existence until its last instance is closed, but can
+ * no longer be opened.
+ */
+public class FileTable {
+    /**
+     * Allocate a new, empty open-file table.
+     *
+     * @param fileSystem the file system holding the files.
+     */
+    public FileTable(FileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    /**
+     * Open a file, optionally creating (and truncating) it. The returned file
+     * releases its table entry when it is closed.
+     *
+     * @param name   the name of the file to open.
+     * @param create <tt>true</tt> to create the file if it does not exist.
+     * @return the opened file, or <tt>null</tt> if the file could not be opened
+     *         or is waiting to be removed.
+     */
+    public OpenFile open(String name, boolean create) {
+        lock.acquire();
+
+        Entry entry = entries.get(name);
+        if (entry != null && entry.unlinked) {
+            lock.release();
+            return null;
+        }
+
+        // creating a file truncates it, so any cached executable is now stale
+        if (create)
+            UserKernel.coffCache.invalidate(name);
+
+        OpenFile file = fileSystem.open(name, create);
+        if (file == null) {
+            lock.release();
+            return null;
+        }
+
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(name, entry);
+        }
+        entry.openCount++;
+
+        lock.release();
+        return new File(file);
+    }
+
+    /**
+     * Remove a file. If the file is open, removal is deferred until its last
+     * open instance is closed.
+     *
+     * @param name the name of the file to remove.
+     * @return <tt>true</tt> if the file was removed or marked for removal.
+     */
+    public boolean unlink(String name) {
+        UserKernel.coffCache.invalidate(name);
+
+        lock.acquire();
+
+        boolean removed;
+        Entry entry = entries.get(name);
+        if (entry != null) {
+            removed = !entry.unlinked;
+            entry.unlinked = true;
+        } else {
+            removed = fileSystem.remove(name);
+        }
+
+        lock.release();
+        return removed;
+    }
+
+    /**
+     * Release one open instance of a file, removing the file if it was unlinked
+     * and this was its last instance.
+     */
+    private void release(String name) {
+        lock.acquire();
+
+        Entry entry = entries.get(name);
+        Lib.assertTrue(entry != null && entry.openCount > 0);
+
+        if (--entry.openCount == 0) {
+            entries.remove(name);
+            if (entry.unlinked)
+                fileSystem.remove(name);
+        }
+
+        lock.release();
+    }
+
+    /**
+     * The bookkeeping for one file with open instances.
+     */
+    private static class Entry {
+        int openCount = 0;
+        boolean unlinked = false;
+    }
+
+    /**
+     * An open instance of a file in this table. Forwards everything to the file
+     * system's own open file, and releases the table entry on close. A process's
+     * syscall ring worker may still be using the file when the process closes
+     * it, so every operation fails with -1 once the file is closed, as in
+     * <tt>SharedFile</tt>.
+     */
+    private class File extends OpenFile {
+        File(OpenFile file) {
+            super(file.getFileSystem(), file.getName());
+            this.file = file;
+        }
+
+        public int read(int pos, byte[] buf, int offset, int length) {
+            OpenFile file = this.file;
+            return file == null ? -1 : file.read(pos, buf, offset, length);
+        }
+
+        public int write(int pos, byte[] buf, int offset, int length) {
+            OpenFile file = this.file;
+            return file == null ? -1 : file.write(pos, buf, offset, length);
+        }
+
+        public int read(byte[] buf, int offset, int length) {
+            OpenFile file = this.file;
+            return file == null ? -1 : file.read(buf, offset, length);
+        }
+
+        public int write(byte[] buf, int offset, int length) {
+            OpenFile file = this.file;
+            return file == null ? -1 : file.write(buf, offset, length);
+        }
+
+        public int length() {
+            OpenFile file = this.file;
+            return file == null ? -1 : file.length();
+        }
+
+        public void seek(int pos) {
+            OpenFile file = this.file;
+            if (file != null)
+                file.seek(pos);
+        }
+
+        public int tell() {
+            OpenFile file = this.file;
+            return file == null ? -1 : file.tell();
+        }
+
+        public void close() {
+            if (file == null)
+                return;
+
+            file.close();
+            file = null;
+            release(getName());
+        }
+
+        private OpenFile file;
+    }
+
+    private FileSystem fileSystem;
+    private HashMap<String, Entry> entries = new HashMap<>();
+    private Lock lock = new Lock();
+}
@@ -0,0 +1,246 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * Allocates physical pages. Free pages are tracked in a bitmap with one bit per
+ * page, so the number of free pages is known in constant time, runs of
+ * contiguous pages can be found a word at a time, and no objects are created
+ * per page.
+ *
+ * <p>
+ * Every allocated page carries a reference count, so that a page can be mapped
+ * by several processes at once (for example after a copy-on-write fork). A
+ * page is allocated with one reference, <tt>share()</tt> adds a reference, and
+ * <tt>free()</tt> drops one; the page only becomes free again when its last
+ * reference is dropped.
+ *
+ * <p>
+ * Allocation never blocks, so the allocator is made atomic by disabling
+ * interrupts rather than with a lock.
+ */
+public class PageAllocator {
+    /**
+     * Allocate a new page allocator with every page free.
+     *
+     * @param numPages the number of physical pages to manage.
+     */
+    public PageAllocator(int numPages) {
+        this.numPages = numPages;
+        freeMap = new long[(numPages + 63) / 64];
+        refCounts = new int[numPages];
+
+        for (int ppn = 0; ppn < numPages; ppn++)
+            setFree(ppn, true);
+        numFreePages = numPages;
+    }
+
+    /**
+     * Return the number of pages that are currently free.
+     *
+     * @return the number of free pages.
+     */
+    public int getNumFreePages() {
+        return numFreePages;
+    }
+
+    /**
+     * Allocate one page.
+     *
+     * @return the allocated page, or -1 if no page is free.
+     */
+    public int allocate() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        int ppn = nextFree(0);
+        if (ppn >= 0)
+            take(ppn);
+
+        Machine.interrupt().restore(intStatus);
+        return ppn;
+    }
+
+    /**
+     * Allocate <i>count</i> pages at once. A contiguous run is used if one is
+     * free, so that the pages can be copied as a single block; otherwise the
+     * lowest free pages are used.
+     *
+     * @param count the number of pages to allocate.
+     * @return the allocated pages, or <tt>null</tt> if fewer than <i>count</i>
+     *         pages are free, in which case nothing is allocated.
+     */
+    public int[] allocate(int count) {
+        Lib.assertTrue(count >= 0);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        if (count > numFreePages) {
+            Machine.interrupt().restore(intStatus);
+            return null;
+        }
+
+        int[] ppns = new int[count];
+
+        int first = findRun(count);
+        if (first >= 0) {
+            for (int i = 0; i < count; i++)
+                ppns[i] = first + i;
+        } else {
+            int ppn = -1;
+            for (int i = 0; i < count; i++)
+                ppns[i] = ppn = nextFree(ppn + 1);
+        }
+
+        for (int i = 0; i < count; i++)
+            take(ppns[i]);
+
+        Machine.interrupt().restore(intStatus);
+        return ppns;
+    }
+
+    /**
+     * Allocate <i>count</i> physically contiguous pages.
+     *
+     * @param count the number of pages to allocate.
+     * @return the first page of the run, or -1 if no run that long is free.
+     */
+    public int allocateContiguous(int count) {
+        Lib.assertTrue(count > 0);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        int first = (count <= numFreePages) ? findRun(count) : -1;
+        if (first >= 0) {
+            for (int i = 0; i < count; i++)
+                take(first + i);
+        }
+
+        Machine.interrupt().restore(intStatus);
+        return first;
+    }
+
+    /**
+     * Add a reference to an allocated page.
+     *
+     * @param ppn the page to share. It must currently be allocated.
+     */
+    public void share(int ppn) {
+        Lib.assertTrue(ppn >= 0 && ppn < numPages);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        Lib.assertTrue(refCounts[ppn] > 0);
+        refCounts[ppn]++;
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of references to a page.
+     *
+     * @param ppn the page to check.
+     * @return the page's reference count, or 0 if the page is free.
+     */
+    public int getRefCount(int ppn) {
+        Lib.assertTrue(ppn >= 0 && ppn < numPages);
+        return refCounts[ppn];
+    }
+
+    /**
+     * Drop a reference to a page, freeing the page if that was the last one.
+     *
+     * @param ppn the page to free. It must currently be allocated.
+     */
+    public void free(int ppn) {
+        Lib.assertTrue(ppn >= 0 && ppn < numPages);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        Lib.assertTrue(refCounts[ppn] > 0);
+        if (--refCounts[ppn] == 0) {
+            setFree(ppn, true);
+            numFreePages++;
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Drop a reference to each of several pages.
+     *
+     * @param ppns the pages to free.
+     */
+    public void free(int[] ppns) {
+        for (int i = 0; i < ppns.length; i++)
+            free(ppns[i]);
+    }
+
+    /**
+     * Return the lowest free page at or above <i>from</i>, or -1 if there is
+     * none.
+     */
+    private int nextFree(int from) {
+        if (from >= numPages)
+            return -1;
+
+        int word = from >>> 6;
+        long bits = freeMap[word] & (-1L << (from & 63));
+
+        while (bits == 0) {
+            if (++word == freeMap.length)
+                return -1;
+            bits = freeMap[word];
+        }
+
+        int ppn = (word << 6) + Long.numberOfTrailingZeros(bits);
+        return (ppn < numPages) ? ppn : -1;
+    }
+
+    /**
+     * Return the first page of the lowest run of <i>count</i> free pages, or -1
+     * if there is none.
+     */
+    private int findRun(int count) {
+        int start = nextFree(0);
+        while (start >= 0 && start + count <= numPages) {
+            int end = start + 1;
+            while (end < start + count && isFree(end))
+                end++;
+
+            if (end == start + count)
+                return start;
+
+            start = nextFree(end);
+        }
+
+        return -1;
+    }
+
+    private void take(int ppn) {
+        setFree(ppn, false);
+        refCounts[ppn] = 1;
+        numFreePages--;
+    }
+
+    private boolean isFree(int ppn) {
+        return (freeMap[ppn >>> 6] & (1L << (ppn & 63))) != 0;
+    }
+
+    private void setFree(int ppn, boolean free) {
+        if (free)
+            freeMap[ppn >>> 6] |= (1L << (ppn & 63));
+        else
+            freeMap[ppn >>> 6] &= ~(1L << (ppn & 63));
+    }
+
+    private int numPages;
+    private int numFreePages;
+
+    /** One bit per physical page; a set bit means the page is free. */
+    private long[] freeMap;
+
+    /** The number of references to each physical page. */
+    private int[] refCounts;
+}
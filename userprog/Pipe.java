@@ -0,0 +1,175 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A one-way channel between processes, backed by a bounded ring buffer in the
+ * kernel. The two ends of a pipe are accessed through <tt>OpenFile</tt>
+ * objects, so they can be installed in a process's file descriptor table and
+ * shared with children like any other file.
+ *
+ * <p>
+ * Reads block while the pipe is empty, and return whatever data is available
+ * once there is some. Writes block while the pipe is full, and only return once
+ * all their data is in the pipe. When every write end has been closed, reads of
+ * an empty pipe return 0 (end of file); when every read end has been closed,
+ * writes fail.
+ */
+public class Pipe {
+    /**
+     * Allocate a new, empty pipe.
+     */
+    public Pipe() {
+    }
+
+    /**
+     * Return an <tt>OpenFile</tt> that reads from this pipe.
+     *
+     * @return a new read end of this pipe.
+     */
+    public OpenFile openForReading() {
+        return new End(true);
+    }
+
+    /**
+     * Return an <tt>OpenFile</tt> that writes to this pipe.
+     *
+     * @return a new write end of this pipe.
+     */
+    public OpenFile openForWriting() {
+        return new End(false);
+    }
+
+    /**
+     * Test whether a file is an end of a pipe, or a shared view of one.
+     *
+     * @param file the file to test.
+     * @return <tt>true</tt> if <i>file</i> is an end of a pipe.
+     */
+    public static boolean isPipe(OpenFile file) {
+        if (file instanceof SharedFile)
+            file = ((SharedFile) file).getFile();
+
+        return file instanceof End;
+    }
+
+    /**
+     * Read up to <i>length</i> bytes, waiting until at least one byte is
+     * available or the pipe has no writers.
+     */
+    private int read(byte[] buf, int offset, int length) {
+        lock.acquire();
+
+        while (count == 0 && writers > 0)
+            notEmpty.sleep();
+
+        int amount = Math.min(length, count);
+        for (int i = 0; i < amount; i++) {
+            buf[offset + i] = buffer[head];
+            head = (head + 1) % buffer.length;
+        }
+        count -= amount;
+
+        if (amount > 0)
+            notFull.wakeAll();
+
+        lock.release();
+        return amount;
+    }
+
+    /**
+     * Write <i>length</i> bytes, waiting for space as needed. Stops early if the
+     * last reader goes away.
+     */
+    private int write(byte[] buf, int offset, int length) {
+        lock.acquire();
+
+        int written = 0;
+        while (written < length) {
+            while (count == buffer.length && readers > 0)
+                notFull.sleep();
+
+            if (readers == 0)
+                break;
+
+            int amount = Math.min(length - written, buffer.length - count);
+            int tail = (head + count) % buffer.length;
+            for (int i = 0; i < amount; i++) {
+                buffer[tail] = buf[offset + written + i];
+                tail = (tail + 1) % buffer.length;
+            }
+            count += amount;
+            written += amount;
+
+            notEmpty.wakeAll();
+        }
+
+        lock.release();
+        return (written == 0 && length > 0) ? -1 : written;
+    }
+
+    /**
+     * An end of a pipe.
+     */
+    private class End extends OpenFile {
+        End(boolean reading) {
+            super(null, fileName);
+            this.reading = reading;
+
+            lock.acquire();
+            if (reading)
+                readers++;
+            else
+                writers++;
+            lock.release();
+        }
+
+        public int read(byte[] buf, int offset, int length) {
+            if (closed || !reading)
+                return -1;
+
+            return Pipe.this.read(buf, offset, length);
+        }
+
+        public int write(byte[] buf, int offset, int length) {
+            if (closed || reading)
+                return -1;
+
+            return Pipe.this.write(buf, offset, length);
+        }
+
+        public void close() {
+            if (closed)
+                return;
+
+            closed = true;
+
+            // wake anyone waiting on the other end, so they see the change
+            lock.acquire();
+            if (reading) {
+                readers--;
+                notFull.wakeAll();
+            } else {
+                writers--;
+                notEmpty.wakeAll();
+            }
+            lock.release();
+        }
+
+        private boolean reading;
+        private boolean closed = false;
+    }
+
+    private static final String fileName = "pipe";
+    private static final int bufferSize = 1024;
+
+    private byte[] buffer = new byte[bufferSize];
+    private int head = 0, count = 0;
+    private int readers = 0, writers = 0;
+
+    private Lock lock = new Lock();
+    private Condition2 notEmpty = new Condition2(lock);
+    private Condition2 notFull = new Condition2(lock);
+}
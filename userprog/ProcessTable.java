@@ -0,0 +1,137 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * The kernel's process table. Maps process IDs to processes through an array
+ * indexed by PID, and recycles the PIDs of reaped processes, so that a kernel
+ * that runs many short-lived processes neither leaks table entries nor runs out
+ * of PIDs.
+ *
+ * <p>
+ * Freed PIDs are reused in first-in, first-out order, which keeps a PID unused
+ * for as long as possible after its process is reaped. Table operations never
+ * block, so they are made atomic by disabling interrupts; lookups are a single
+ * array read.
+ */
+public class ProcessTable {
+    /**
+     * Allocate a new, empty process table.
+     */
+    public ProcessTable() {
+    }
+
+    /**
+     * Add a process to the table and assign it a PID.
+     *
+     * @param process the process to add.
+     * @return the new process's PID.
+     */
+    public int add(UserProcess process) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        int pid;
+        if (numFreePids > 0) {
+            pid = freePids[freeHead];
+            freeHead = (freeHead + 1) % freePids.length;
+            numFreePids--;
+        } else {
+            if (nextPid == slots.length)
+                grow();
+            pid = nextPid++;
+        }
+
+        slots[pid] = process;
+
+        Machine.interrupt().restore(intStatus);
+        return pid;
+    }
+
+    /**
+     * Return the process with the specified PID.
+     *
+     * @param pid the PID to look up.
+     * @return the process, or <tt>null</tt> if no process has that PID.
+     */
+    public UserProcess get(int pid) {
+        if (pid < 0 || pid >= nextPid)
+            return null;
+
+        return slots[pid];
+    }
+
+    /**
+     * Note that a process in the table has started running.
+     */
+    public void started() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        numActive++;
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Note that a running process has exited. Its entry stays in the table,
+     * as a zombie, until it is reaped with <tt>remove()</tt>.
+     *
+     * @return the number of processes still running.
+     */
+    public int exited() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        Lib.assertTrue(numActive > 0);
+        int remaining = --numActive;
+
+        Machine.interrupt().restore(intStatus);
+        return remaining;
+    }
+
+    /**
+     * Remove a process from the table and free its PID for reuse.
+     *
+     * @param pid the PID of the process to remove.
+     */
+    public void remove(int pid) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        Lib.assertTrue(get(pid) != null);
+        slots[pid] = null;
+
+        freePids[(freeHead + numFreePids) % freePids.length] = pid;
+        numFreePids++;
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Double the size of the table. Only called when every slot is in use, so
+     * the free PID queue is empty and can simply be reallocated.
+     */
+    private void grow() {
+        Lib.assertTrue(numFreePids == 0);
+
+        UserProcess[] newSlots = new UserProcess[slots.length * 2];
+        System.arraycopy(slots, 0, newSlots, 0, slots.length);
+        slots = newSlots;
+
+        freePids = new int[slots.length];
+        freeHead = 0;
+    }
+
+    private static final int initialSize = 16;
+
+    /** Processes indexed by PID; <tt>null</tt> for unused PIDs. */
+    private UserProcess[] slots = new UserProcess[initialSize];
+    /** The lowest PID that has never been handed out. */
+    private int nextPid = 0;
+
+    /** A circular queue of PIDs that have been freed. */
+    private int[] freePids = new int[initialSize];
+    private int freeHead = 0, numFreePids = 0;
+
+    /** The number of processes started but not yet exited. */
+    private int numActive = 0;
+}
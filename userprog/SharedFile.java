@@ -0,0 +1,100 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A file descriptor's view of an open file that may be shared with other
+ * descriptors, for example after a <tt>fork()</tt>. All views of a file share
+ * its position, and the file itself is closed when its last view is closed.
+ */
+public class SharedFile extends OpenFile {
+    /**
+     * Wrap an open file in a first, unshared view.
+     *
+     * @param file the file to share.
+     */
+    public SharedFile(OpenFile file) {
+        this(new Handle(file));
+    }
+
+    private SharedFile(Handle handle) {
+        super(handle.file.getFileSystem(), handle.file.getName());
+        this.handle = handle;
+        handle.views++;
+    }
+
+    /**
+     * Return a file that can be shared with another file descriptor. If the file
+     * is already a <tt>SharedFile</tt>, a new view of it is returned; otherwise
+     * the file must first be wrapped with <tt>new SharedFile(file)</tt>.
+     *
+     * @return a new view of the same open file.
+     */
+    public SharedFile dup() {
+        Lib.assertTrue(!closed);
+        return new SharedFile(handle);
+    }
+
+    /**
+     * Return the open file shared by this view.
+     *
+     * @return the underlying file.
+     */
+    public OpenFile getFile() {
+        return handle.file;
+    }
+
+    public int read(int pos, byte[] buf, int offset, int length) {
+        return closed ? -1 : handle.file.read(pos, buf, offset, length);
+    }
+
+    public int write(int pos, byte[] buf, int offset, int length) {
+        return closed ? -1 : handle.file.write(pos, buf, offset, length);
+    }
+
+    public int read(byte[] buf, int offset, int length) {
+        return closed ? -1 : handle.file.read(buf, offset, length);
+    }
+
+    public int write(byte[] buf, int offset, int length) {
+        return closed ? -1 : handle.file.write(buf, offset, length);
+    }
+
+    public int length() {
+        return handle.file.length();
+    }
+
+    public void seek(int pos) {
+        handle.file.seek(pos);
+    }
+
+    public int tell() {
+        return handle.file.tell();
+    }
+
+    public void close() {
+        if (closed)
+            return;
+
+        closed = true;
+        if (--handle.views == 0)
+            handle.file.close();
+    }
+
+    /**
+     * The state shared by every view of one open file.
+     */
+    private static class Handle {
+        Handle(OpenFile file) {
+            this.file = file;
+        }
+
+        OpenFile file;
+        int views = 0;
+    }
+
+    private Handle handle;
+    private boolean closed = false;
+}
@@ -4,9 +4,17 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.LinkedList;
+
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Output is buffered. Each writer collects bytes in its own line buffer, full
+ * lines go into an output ring shared by all writers, and a background thread
+ * drains the ring to the serial console. Writers only block when the ring is
+ * full.
  */
 public class SynchConsole {
 	/**
@@ -28,6 +36,12 @@ public class SynchConsole {
 			}
 		};
 		console.setInterruptHandlers(receiveHandler, sendHandler);
+
+		new KThread(new Runnable() {
+			public void run() {
+				drainOutput();
+			}
+		}).setName("console output").fork();
 	}
 
 	/**
@@ -75,24 +89,142 @@ public class SynchConsole {
 	}
 
 	/**
-	 * Send a byte. Blocks until the send is complete.
+	 * Send a byte. The byte is queued in the output ring and sent in the
+	 * background, so this only blocks if the ring is full.
 	 *
 	 * @param value the byte to be sent (the upper 24 bits are ignored).
 	 */
 	public void writeByte(int value) {
+		byte[] buf = { (byte) value };
+		queueOutput(buf, 0, 1);
+	}
+
+	/**
+	 * Flush all buffered console output, including partial lines still held by
+	 * open writers, and wait until every byte has been sent.
+	 */
+	public void flush() {
+		flushLineBuffers();
+
+		outputLock.acquire();
+		while (outputCount > 0 || outputBusy)
+			outputDrained.sleep();
+		outputLock.release();
+	}
+
+	/**
+	 * Send a byte directly to the serial console. Blocks until the send is
+	 * complete.
+	 */
+	private void sendByte(int value) {
 		writeLock.acquire();
 		console.writeByte(value);
 		writeWait.P();
 		writeLock.release();
 	}
 
+	/**
+	 * Append bytes to the shared output ring, blocking only while the ring is
+	 * full.
+	 */
+	private void queueOutput(byte[] buf, int offset, int length) {
+		outputLock.acquire();
+
+		while (length > 0) {
+			while (outputCount == outputRing.length)
+				outputNotFull.sleep();
+
+			int amount = Math.min(length, outputRing.length - outputCount);
+			int tail = (outputHead + outputCount) % outputRing.length;
+			int first = Math.min(amount, outputRing.length - tail);
+
+			System.arraycopy(buf, offset, outputRing, tail, first);
+			System.arraycopy(buf, offset + first, outputRing, 0, amount - first);
+
+			outputCount += amount;
+			offset += amount;
+			length -= amount;
+
+			outputNotEmpty.wake();
+		}
+
+		outputLock.release();
+	}
+
+	/**
+	 * The body of the output thread. Takes everything queued in the ring at
+	 * once, frees the ring for writers, and then sends the batch to the serial
+	 * console, which still accepts one byte per send interrupt.
+	 */
+	private void drainOutput() {
+		byte[] batch = new byte[outputRing.length];
+
+		while (true) {
+			outputLock.acquire();
+
+			while (outputCount == 0) {
+				outputBusy = false;
+				outputDrained.wakeAll();
+				outputNotEmpty.sleep();
+			}
+
+			int amount = outputCount;
+			int first = Math.min(amount, outputRing.length - outputHead);
+			System.arraycopy(outputRing, outputHead, batch, 0, first);
+			System.arraycopy(outputRing, 0, batch, first, amount - first);
+
+			outputHead = (outputHead + amount) % outputRing.length;
+			outputCount = 0;
+			outputBusy = true;
+
+			outputNotFull.wakeAll();
+			outputLock.release();
+
+			for (int i = 0; i < amount; i++)
+				sendByte(batch[i]);
+		}
+	}
+
+	/**
+	 * Push the partial line held by one writer into the output ring. Does
+	 * nothing if the file is not a writer of this console.
+	 *
+	 * @param file a file returned by <tt>openForWriting()</tt>, or a shared
+	 *             view of one.
+	 */
+	public void flushLine(OpenFile file) {
+		if (file instanceof SharedFile)
+			file = ((SharedFile) file).getFile();
+
+		if (file instanceof File)
+			((File) file).flushLine();
+	}
+
+	/**
+	 * Push the partial lines held by every open writer into the output ring.
+	 */
+	private void flushLineBuffers() {
+		writersLock.acquire();
+		File[] files = writers.toArray(new File[writers.size()]);
+		writersLock.release();
+
+		for (File file : files)
+			file.flushLine();
+	}
+
 	/**
 	 * Return an <tt>OpenFile</tt> that can be used to write this as a file.
 	 *
 	 * @return a file that can write this console.
 	 */
 	public OpenFile openForWriting() {
-		return new File(false, true);
+		File file = new File(false, true);
+
+		writersLock.acquire();
+		writers.add(file);
+		writersLock.release();
+
+		return file;
 	}
 
 	private void sendInterrupt() {
@@ -107,6 +239,22 @@ public class SynchConsole {
 	private Semaphore readWait = new Semaphore(0);
 	private Semaphore writeWait = new Semaphore(0);
 
+	/** The size of the output ring shared by all writers. */
+	private static final int outputRingSize = 1024;
+	/** The size of each writer's line buffer. */
+	private static final int lineBufferSize = 128;
+
+	private byte[] outputRing = new byte[outputRingSize];
+	private int outputHead = 0, outputCount = 0;
+	private boolean outputBusy = false;
+	private Lock outputLock = new Lock();
+	private Condition2 outputNotEmpty = new Condition2(outputLock);
+	private Condition2 outputNotFull = new Condition2(outputLock);
+	private Condition2 outputDrained = new Condition2(outputLock);
+
+	private LinkedList<File> writers = new LinkedList<File>();
+	private Lock writersLock = new Lock();
+
 	private class File extends OpenFile {
 		File(boolean canRead, boolean canWrite) {
 			super(null, "SynchConsole");
@@ -116,6 +264,14 @@ public class SynchConsole {
 		}
 
 		public void close() {
+			if (canWrite) {
+				flushLine();
+
+				writersLock.acquire();
+				writers.remove(this);
+				writersLock.release();
+			}
+
 			canRead = canWrite = false;
 		}
 
@@ -123,6 +279,9 @@ public class SynchConsole {
 			if (!canRead)
 				return 0;
 
+			// like stdio, make any pending prompt visible before reading input
+			flushLineBuffers();
+
 			int i;
 			for (i = 0; i < length; i++) {
 				int value = SynchConsole.this.readByte(false);
@@ -139,12 +298,40 @@ public class SynchConsole {
 			if (!canWrite)
 				return 0;
 
-			for (int i = 0; i < length; i++)
-				SynchConsole.this.writeByte(buf[offset + i]);
+			lineLock.acquire();
+
+			for (int i = 0; i < length; i++) {
+				byte value = buf[offset + i];
+				lineBuffer[lineLength++] = value;
 
+				if (value == '\n' || lineLength == lineBuffer.length)
+					queueLine();
+			}
+
+			lineLock.release();
 			return length;
 		}
 
+		/**
+		 * Push this writer's partial line, if any, into the output ring.
+		 */
+		void flushLine() {
+			lineLock.acquire();
+			queueLine();
+			lineLock.release();
+		}
+
+		private void queueLine() {
+			if (lineLength > 0) {
+				queueOutput(lineBuffer, 0, lineLength);
+				lineLength = 0;
+			}
+		}
+
 		private boolean canRead, canWrite;
+
+		private byte[] lineBuffer = new byte[lineBufferSize];
+		private int lineLength = 0;
+		private Lock lineLock = new Lock();
 	}
 }
@@ -0,0 +1,226 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A submission and completion ring shared between a user process and the
+ * kernel, for issuing system calls in batches. The ring lives in the process's
+ * memory:
+ *
+ * <pre>
+ * int sq_head, sq_tail;        // submissions consumed by the kernel / queued
+ * int cq_head, cq_tail;        // completions consumed by the user / posted
+ * struct { int syscall, arg0, arg1, arg2, user_data; } sq[entries];
+ * struct { int user_data, result; } cq[entries];
+ * </pre>
+ *
+ * <p>
+ * The head and tail counters only ever increase; entry <i>i</i> lives in slot
+ * <tt>i % entries</tt>. The process queues submissions and advances
+ * <tt>sq_tail</tt>, then calls <tt>ring_enter()</tt>. A kernel worker thread
+ * then runs the queued system calls on the process's behalf, and posts a
+ * completion for each, while the process continues to run. The worker stops
+ * taking submissions while the completion queue is full.
+ *
+ * <p>
+ * The worker only runs when kicked. <tt>shutdown()</tt> waits for it to finish
+ * the call it is running, so that the process's files and memory are only
+ * released once the worker is done with them. A process that exits while a
+ * ring call is blocked, for example reading an empty pipe, waits for that call
+ * to return.
+ */
+public class SyscallRing {
+    /**
+     * Allocate a new ring and start its worker thread.
+     *
+     * @param process  the process that owns the ring.
+     * @param ringAddr the address of the ring in the process's memory.
+     * @param entries  the number of slots in each queue.
+     */
+    public SyscallRing(UserProcess process, int ringAddr, int entries) {
+        Lib.assertTrue(entries > 0 && entries <= maxEntries);
+
+        this.process = process;
+        this.ringAddr = ringAddr;
+        this.entries = entries;
+
+        worker = new KThread(new Runnable() {
+            public void run() {
+                serve();
+            }
+        }).setName("syscall ring");
+        worker.fork();
+    }
+
+    /**
+     * Return the number of bytes a ring with the specified number of entries
+     * occupies in memory.
+     *
+     * @param entries the number of slots in each queue.
+     * @return the size of the ring in bytes.
+     */
+    public static int size(int entries) {
+        return headerSize + entries * (sqeSize + cqeSize);
+    }
+
+    /**
+     * Wake the worker to run any new submissions, and wait until at least
+     * <i>minComplete</i> completions are ready, or until the worker runs out of
+     * work.
+     *
+     * @param minComplete the number of completions to wait for.
+     * @return the number of completions ready, or -1 if the ring could not be
+     *         read.
+     */
+    public int enter(int minComplete) {
+        lock.acquire();
+
+        kicked = true;
+        workAvailable.wake();
+
+        while (completionsReady() < minComplete && (kicked || busy))
+            completed.sleep();
+
+        int ready = completionsReady();
+
+        lock.release();
+        return ready;
+    }
+
+    /**
+     * Stop the worker, and wait for it to finish. A system call it is running
+     * still finishes, but no more are started.
+     */
+    public void shutdown() {
+        lock.acquire();
+
+        shutdown = true;
+        workAvailable.wake();
+        completed.wakeAll();
+
+        lock.release();
+
+        worker.join();
+    }
+
+    /**
+     * The worker thread's main loop.
+     */
+    private void serve() {
+        lock.acquire();
+
+        while (true) {
+            while (!kicked && !shutdown)
+                workAvailable.sleep();
+
+            if (shutdown)
+                break;
+
+            kicked = false;
+            busy = true;
+            lock.release();
+
+            drain();
+
+            lock.acquire();
+            busy = false;
+            completed.wakeAll();
+        }
+
+        lock.release();
+    }
+
+    /**
+     * Run queued submissions until the submission queue is empty, the
+     * completion queue is full, or the ring is shut down.
+     */
+    private void drain() {
+        while (!shutdown) {
+            int sqHead = readWord(sqHeadOffset);
+            int sqTail = readWord(sqTailOffset);
+            int cqHead = readWord(cqHeadOffset);
+            int cqTail = readWord(cqTailOffset);
+            if (sqHead == -1 || sqTail == -1 || cqHead == -1 || cqTail == -1)
+                return;
+
+            if (sqHead == sqTail || cqTail - cqHead >= entries)
+                return;
+
+            byte[] sqe = new byte[sqeSize];
+            int sqeAddr = ringAddr + headerSize + (sqHead % entries) * sqeSize;
+            if (process.readVirtualMemory(sqeAddr, sqe) != sqeSize)
+                return;
+
+            // free the submission slot before running the call
+            if (!writeWord(sqHeadOffset, sqHead + 1))
+                return;
+
+            int result = process.handleRingSyscall(Lib.bytesToInt(sqe, 0), Lib.bytesToInt(sqe, 4),
+                    Lib.bytesToInt(sqe, 8), Lib.bytesToInt(sqe, 12));
+
+            byte[] cqe = new byte[cqeSize];
+            Lib.bytesFromInt(cqe, 0, Lib.bytesToInt(sqe, 16));
+            Lib.bytesFromInt(cqe, 4, result);
+
+            int cqeAddr = ringAddr + headerSize + entries * sqeSize + (cqTail % entries) * cqeSize;
+            if (process.writeVirtualMemory(cqeAddr, cqe) != cqeSize)
+                return;
+            if (!writeWord(cqTailOffset, cqTail + 1))
+                return;
+
+            lock.acquire();
+            completed.wakeAll();
+            lock.release();
+        }
+    }
+
+    /**
+     * Return the number of completions the process has not consumed yet, or -1
+     * if the ring could not be read.
+     */
+    private int completionsReady() {
+        int cqHead = readWord(cqHeadOffset);
+        int cqTail = readWord(cqTailOffset);
+        if (cqHead == -1 || cqTail == -1)
+            return -1;
+
+        return cqTail - cqHead;
+    }
+
+    /**
+     * Read a header word of the ring, returning -1 if it cannot be read.
+     */
+    private int readWord(int offset) {
+        byte[] word = new byte[4];
+        if (process.readVirtualMemory(ringAddr + offset, word) != word.length)
+            return -1;
+
+        return Lib.bytesToInt(word, 0);
+    }
+
+    /**
+     * Write a header word of the ring.
+     */
+    private boolean writeWord(int offset, int value) {
+        return process.writeVirtualMemory(ringAddr + offset, Lib.bytesFromInt(value)) == 4;
+    }
+
+    /** The most slots a queue may have. */
+    public static final int maxEntries = 64;
+
+    private static final int sqHeadOffset = 0, sqTailOffset = 4, cqHeadOffset = 8, cqTailOffset = 12;
+    private static final int headerSize = 16, sqeSize = 20, cqeSize = 8;
+
+    private UserProcess process;
+    private KThread worker;
+    private int ringAddr;
+    private int entries;
+
+    private boolean kicked = false, busy = false, shutdown = false;
+
+    private Lock lock = new Lock();
+    private Condition2 workAvailable = new Condition2(lock);
+    private Condition2 completed = new Condition2(lock);
+}
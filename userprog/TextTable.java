@@ -0,0 +1,134 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.HashMap;
+
+/**
+ * The kernel's shared-text table. Read-only COFF sections never change once
+ * loaded, so every process running the same executable can map the same
+ * physical pages for them. The first process to load a section publishes its
+ * pages here; later processes running that executable map the published pages
+ * instead of loading their own copy.
+ *
+ * <p>
+ * Each user of a section holds its own reference to every page of the section
+ * in the page allocator, and frees those pages like any other when it exits.
+ * This table only counts the users of each section, and forgets the section
+ * when its last user releases it.
+ */
+public class TextTable {
+    /**
+     * Allocate a new, empty shared-text table.
+     */
+    public TextTable() {
+    }
+
+    /**
+     * Map a section that another process has already loaded. On success the
+     * caller becomes a user of the section and holds a reference to each of its
+     * pages.
+     *
+     * @param executable identifies the executable image.
+     * @param section    the section number within the executable.
+     * @return the physical pages holding the section, or <tt>null</tt> if the
+     *         section has not been published.
+     */
+    public int[] acquire(String executable, int section) {
+        lock.acquire();
+
+        Entry entry = entries.get(key(executable, section));
+        if (entry == null) {
+            lock.release();
+            return null;
+        }
+
+        for (int i = 0; i < entry.ppns.length; i++)
+            UserKernel.pageAllocator.share(entry.ppns[i]);
+        entry.users++;
+
+        lock.release();
+        return entry.ppns;
+    }
+
+    /**
+     * Publish a freshly loaded section so other processes can share it. The
+     * caller becomes its first user.
+     *
+     * @param executable identifies the executable image.
+     * @param section    the section number within the executable.
+     * @param ppns       the physical pages holding the section.
+     * @return <tt>true</tt> if the section was published, or <tt>false</tt> if
+     *         another process published it first, in which case the caller's
+     *         pages stay private.
+     */
+    public boolean publish(String executable, int section, int[] ppns) {
+        lock.acquire();
+
+        String key = key(executable, section);
+        boolean published = !entries.containsKey(key);
+        if (published)
+            entries.put(key, new Entry(ppns));
+
+        lock.release();
+        return published;
+    }
+
+    /**
+     * Add a user to a published section whose page references were already
+     * taken, as when a forked child inherits its parent's mappings.
+     *
+     * @param executable identifies the executable image.
+     * @param section    the section number within the executable.
+     */
+    public void retain(String executable, int section) {
+        lock.acquire();
+
+        Entry entry = entries.get(key(executable, section));
+        Lib.assertTrue(entry != null);
+        entry.users++;
+
+        lock.release();
+    }
+
+    /**
+     * Remove a user from a published section, forgetting the section when its
+     * last user is gone. The caller frees its page references separately.
+     *
+     * @param executable identifies the executable image.
+     * @param section    the section number within the executable.
+     */
+    public void release(String executable, int section) {
+        lock.acquire();
+
+        String key = key(executable, section);
+        Entry entry = entries.get(key);
+        Lib.assertTrue(entry != null && entry.users > 0);
+
+        if (--entry.users == 0)
+            entries.remove(key);
+
+        lock.release();
+    }
+
+    private static String key(String executable, int section) {
+        return executable + "#" + section;
+    }
+
+    /**
+     * A published section.
+     */
+    private static class Entry {
+        Entry(int[] ppns) {
+            this.ppns = ppns;
+        }
+
+        int[] ppns;
+        int users = 1;
+    }
+
+    private HashMap<String, Entry> entries = new HashMap<>();
+    private Lock lock = new Lock();
+}
@@ -1,7 +1,5 @@
 package nachos.userprog;
 
-import java.util.LinkedList;
-
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -26,22 +24,20 @@ public class UserKernel extends ThreadedKernel {
         super.initialize(args);
 
         console = new SynchConsole(Machine.console());
-        lock = new Lock();
+        fileTable = new FileTable(fileSystem);
         consoleLock = new Lock();
 
+        pageAllocator = new PageAllocator(Machine.processor().getNumPhysPages());
 
-        //added code
-        // initially, all pages in phys memory are free
-        lock.acquire();
-        freePhysicalPages = new LinkedList<>();
-        int numPhysicalPages = Machine.processor().getNumPhysPages();
-        for (int i = 0; i < numPhysicalPages; i++) {
-            freePhysicalPages.add(i);   //idk if things other than user processes use memory
-        }
-
-        lock.release();
+        // the zero page holds one reference of its own, so it is never freed
+        zeroPage = pageAllocator.allocate();
+        byte[] memory = Machine.processor().getMemory();
+        for (int i = 0; i < Processor.pageSize; i++)
+            memory[zeroPage * Processor.pageSize + i] = 0;
 
-        //end
+        textTable = new TextTable();
+        coffCache = new CoffCache(Config.getInteger("UserKernel.coffCacheSize", 4));
+        processTable = new ProcessTable();
 
         Machine.processor().setExceptionHandler(new Runnable() {
             public void run() {
@@ -123,17 +119,36 @@ public class UserKernel extends ThreadedKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+        console.flush();
         super.terminate();
     }
 
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** Globally accessible reference to the open-file table. */
+    public static FileTable fileTable;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 
-    public static LinkedList<Integer> freePhysicalPages; // tells me which physical pages are free
+    /** Globally accessible reference to the physical page allocator. */
+    public static PageAllocator pageAllocator;
+
+    /**
+     * A physical page of zeros, mapped read-only by every demand-zero page that
+     * has not been written yet.
+     */
+    public static int zeroPage;
+
+    /** Globally accessible reference to the shared-text table. */
+    public static TextTable textTable;
+
+    /** Globally accessible reference to the cache of parsed executables. */
+    public static CoffCache coffCache;
+
+    /** Globally accessible reference to the process table. */
+    public static ProcessTable processTable;
 
-    public static Lock lock;
     public static Lock consoleLock;
 }
@@ -4,11 +4,9 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.io.EOFException;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 
 /**
  * Encapsulates the state of a user process that is not contained in its user
@@ -27,31 +25,17 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-
-        processCountLock = new Lock();
-        activeProcessesLock = new Lock();
-
-        int numPhysPages = Machine.processor().getNumPhysPages();
-        childProcessesId = new ArrayList<>();
-
-        processCountLock.acquire();
-        processId = processCount;
-        processCount++;
-        processIdMap.put(processId, this);
-
-        processCountLock.release();
+        processId = UserKernel.processTable.add(this);
 
         exitStatus = -1;
 
-        stdIn = UserKernel.console.openForReading();
-        stdOut = UserKernel.console.openForWriting();
+        fileDescriptors[0] = UserKernel.console.openForReading();
+        fileDescriptors[1] = UserKernel.console.openForWriting();
 
-        // on context switches, this pageTable gets saved onto processor
-
-        pageTable = new TranslationEntry[numPhysPages];
-
-        for (int i = 0; i < numPhysPages; i++)
-            pageTable[i] = new TranslationEntry(i, i, true, false, false, false);
+        // on context switches, this pageTable gets saved onto processor;
+        // it grows as the address space does
+        pageTable = new TranslationEntry[0];
+        copyOnWrite = new boolean[0];
 
         // added code
         if (rootProcess == null) {
@@ -78,16 +62,39 @@ public class UserProcess {
      * @return <tt>true</tt> if the program was successfully executed.
      */
     public boolean execute(String name, String[] args) {
-        if (!load(name, args))
+        if (!load(name, args)) {
+            discard();
             return false;
+        }
 
+        startThread(name);
+        return true;
+    }
+
+    /**
+     * Fork the user thread that runs this process.
+     *
+     * @param name the name to give the thread.
+     */
+    private void startThread(String name) {
         uThread = new UThread(this).setName(name);
+        UserKernel.processTable.started();
         uThread.fork();
-        activeProcessesLock.acquire();
-        activeProcesses++;
-        activeProcessesLock.release();
+    }
 
-        return true;
+    /**
+     * Release the resources of a process that never started running, and
+     * remove it from the process table.
+     */
+    private void discard() {
+        for (int i = 0; i < maxOpenFiles; i++) {
+            if (fileDescriptors[i] != null) {
+                fileDescriptors[i].close();
+                fileDescriptors[i] = null;
+            }
+        }
+
+        UserKernel.processTable.remove(processId);
     }
 
     /**
@@ -158,91 +165,7 @@ public class UserProcess {
      * @return the number of bytes successfully transferred.
      */
     public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-
-        Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-
-        // here offset if the starting point of the destination (ie data) array
-
-        // this reads length bytes from virtual memory.
-
-        byte[] memory = Machine.processor().getMemory();
-
-        // for now, just assume that virtual addresses equal physical addresses
-
-        // if (vaddr < 0 || vaddr >= memory.length)
-        // return 0;
-
-        // added
-        if (vaddr < 0 || vaddr > getMaxVirtualAddr())
-            return 0;
-        // end
-
-        // int amount = Math.min(length, memory.length - vaddr);
-        // added
-        int amount = Math.min(length, getMaxVirtualAddr() - vaddr + 1);
-        // so if length is such that writing exceeds
-        // physical/virtual memory bounds, then only read upto
-        // max memory index
-        // added
-
-        int lastPage = (vaddr + amount) / pageSize;
-        int firstPage = vaddr / pageSize;
-        int pagesToRead = lastPage - firstPage + 1;
-
-        int startOffset = vaddr % pageSize;
-
-        int remaining = amount;
-
-        int bytesRead = 0;
-
-        for (int i = 0; i <= pagesToRead; i++) {
-
-            int vpn = firstPage + i;
-
-            // ----- ----- ----- ----- ----- -----
-
-
-
-            // remaining = Math.min(pageSize - startOffset, amount);
-
-            // remaining = amount - (i * pageSize);
-
-
-          
-            // System.out.println("REMAINING: " + remaining);
-            int readLimit = Math.min(pageSize, remaining);
-
-            if(i == 0) {
-                readLimit = Math.min(pageSize - startOffset - 1 , amount);
-                
-            }
-
-            remaining -= readLimit;
-            
-
-            pageTable[vpn].used = true;
-
-            int start = pageTable[vpn].ppn * pageSize; // if page isnt first page, start will always be start of page
-            if (i == 0) {
-                // this is first page accessed, so take startOffset into account
-                start += startOffset;
-
-                // if (readLimit == pageSize) {
-                //     readLimit = readLimit - startOffset;
-                // }
-
-            }
-
-           
-
-            System.arraycopy(memory, start, data, offset + bytesRead, readLimit);
-            bytesRead += readLimit;
-
-        }
-
-        // System.arraycopy(memory, vaddr, data, offset, amounVt);
-
-        return amount;
+        return transferVirtualMemory(vaddr, data, offset, length, false);
     }
 
     /**
@@ -271,89 +194,271 @@ public class UserProcess {
      * @return the number of bytes successfully transferred.
      */
     public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+        return transferVirtualMemory(vaddr, data, offset, length, true);
+    }
 
+    /**
+     * Transfer data between this process's virtual memory and the specified
+     * array, one physically contiguous run at a time.
+     */
+    private int transferVirtualMemory(int vaddr, final byte[] data, final int offset, int length,
+            final boolean writing) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-        // System.out.println("WRITE VM USED");
-        // System.out.flush();
 
-        byte[] memory = Machine.processor().getMemory();
+        return transferRuns(vaddr, length, writing, new RunTransfer() {
+            public int transfer(byte[] memory, int paddr, int done, int runLength) {
+                if (writing)
+                    System.arraycopy(data, offset + done, memory, paddr, runLength);
+                else
+                    System.arraycopy(memory, paddr, data, offset + done, runLength);
 
-        // for now, just assume that virtual addresses equal physical addresses
-        // if (vaddr < 0 || vaddr >= memory.length)
-        // return 0;
+                return runLength;
+            }
+        });
+    }
 
-        if (vaddr < 0 || vaddr > getMaxVirtualAddr())
-            return 0;
+    /**
+     * Read from a file directly into this process's virtual memory. The file
+     * reads straight into main memory, one physically contiguous run at a time,
+     * so no intermediate buffer is needed.
+     *
+     * @param file   the file to read from.
+     * @param vaddr  the first byte of virtual memory to fill.
+     * @param length the number of bytes to read.
+     * @return the number of bytes read, or -1 if the file reported an error
+     *         before any bytes were read.
+     */
+    protected int readFileToVirtualMemory(final OpenFile file, int vaddr, int length) {
+        return transferRuns(vaddr, length, true, new RunTransfer() {
+            public int transfer(byte[] memory, int paddr, int done, int runLength) {
+                return file.read(memory, paddr, runLength);
+            }
+        });
+    }
 
-        // int amount = Math.min(length, memory.length - vaddr);
+    /**
+     * Write to a file directly from this process's virtual memory, one physically
+     * contiguous run at a time.
+     *
+     * @param file   the file to write to.
+     * @param vaddr  the first byte of virtual memory to write out.
+     * @param length the number of bytes to write.
+     * @return the number of bytes written, or -1 if the file reported an error
+     *         before any bytes were written.
+     */
+    protected int writeFileFromVirtualMemory(final OpenFile file, int vaddr, int length) {
+        return transferRuns(vaddr, length, false, new RunTransfer() {
+            public int transfer(byte[] memory, int paddr, int done, int runLength) {
+                return file.write(memory, paddr, runLength);
+            }
+        });
+    }
 
-        int amount = Math.min(length, getMaxVirtualAddr() - vaddr + 1);
+    /**
+     * Split a range of this process's virtual memory into runs of physically
+     * contiguous pages, and apply <i>op</i> to each run in order. Partial first
+     * and last pages are handled exactly. The transfer stops at the first page
+     * that cannot be accessed, or as soon as <i>op</i> moves fewer bytes than it
+     * was given.
+     *
+     * @param vaddr   the first byte of virtual memory to transfer.
+     * @param length  the number of bytes to transfer.
+     * @param writing <tt>true</tt> if the transfer writes virtual memory.
+     * @param op      the operation to apply to each run.
+     * @return the number of bytes transferred, or -1 if <i>op</i> failed on the
+     *         first run.
+     */
+    protected int transferRuns(int vaddr, int length, boolean writing, RunTransfer op) {
+        Lib.assertTrue(length >= 0);
 
-        // for (int i = offset; i < amount; i++) {
-        // memory[pageTable[vaddr + i].ppn] = data[i];
+        byte[] memory = Machine.processor().getMemory();
 
-        // }
+        int transferred = 0;
+        while (transferred < length) {
+            int runStart = 0;
+            int runLength = 0;
+            int runFirstVpn = Processor.pageFromAddress(vaddr + transferred);
+            int runPages = 0;
+
+            // extend the run for as long as each page follows the last physically
+            while (transferred + runLength < length) {
+                int addr = vaddr + transferred + runLength;
+                if (addr < 0)
+                    break;
+
+                int vpn = Processor.pageFromAddress(addr);
+                TranslationEntry entry = translatePage(vpn, writing);
+                if (entry == null)
+                    break;
+
+                int pageOffset = Processor.offsetFromAddress(addr);
+                int paddr = Processor.makeAddress(entry.ppn, pageOffset);
+                if (runLength == 0) {
+                    runStart = paddr;
+                } else if (paddr != runStart + runLength) {
+                    releasePage(vpn, entry.ppn);
+                    break;
+                }
+
+                entry.used = true;
+                if (writing)
+                    entry.dirty = true;
+
+                runLength += Math.min(pageSize - pageOffset, length - transferred - runLength);
+                runPages++;
+            }
 
-        // int bytesWritten = amount;
+            if (runLength == 0)
+                break;
 
-        int pagesToRead = amount / pageSize;
-        int firstPage = vaddr / pageSize;
+            int amount = op.transfer(memory, runStart, transferred, runLength);
 
-        int startOffset = vaddr % pageSize;
+            int runFirstPpn = Processor.pageFromAddress(runStart);
+            for (int i = 0; i < runPages; i++)
+                releasePage(runFirstVpn + i, runFirstPpn + i);
 
-        int remaining = amount;
+            if (amount < 0)
+                return (transferred == 0) ? -1 : transferred;
 
-        int bytesWritten = 0;
+            transferred += amount;
+            if (amount < runLength)
+                break;
+        }
 
-        for (int i = 0; i <= pagesToRead; i++) {
+        return transferred;
+    }
 
-            // if (pageTable[i + vaddr].readOnly) {
-            // // cant write to this page, so skip
-            // bytesWritten = bytesWritten - pageSize;
-            // continue;
-            // }
+    /**
+     * An operation applied by <tt>transferRuns()</tt> to each physically
+     * contiguous run of a transfer.
+     */
+    protected interface RunTransfer {
+        /**
+         * Transfer one run.
+         *
+         * @param memory the machine's main memory.
+         * @param paddr  the physical address of the first byte of the run.
+         * @param done   the number of bytes transferred by earlier runs.
+         * @param length the number of bytes in the run.
+         * @return the number of bytes actually transferred, or -1 on error.
+         */
+        int transfer(byte[] memory, int paddr, int done, int length);
+    }
 
+    /**
+     * Return the page table entry that maps the specified virtual page, if the
+     * kernel may access that page on behalf of this process.
+     *
+     * @param vpn     the virtual page to access.
+     * @param writing <tt>true</tt> if the page is about to be written.
+     * @return the translation for the page, or <tt>null</tt> if the page is not
+     *         mapped or is read-only and <i>writing</i> is set.
+     */
+    protected TranslationEntry translatePage(int vpn, boolean writing) {
+        if (vpn < 0 || vpn >= numPages || vpn >= pageTable.length)
+            return null;
 
+        if (!pageTable[vpn].valid && !handlePageFault(vpn))
+            return null;
 
-            int vpn = firstPage + i;
+        // a page fault installs a new entry, so look the page up afresh; a
+        // demand-zero page comes back mapped to the zero page, copy-on-write
+        TranslationEntry entry = pageTable[vpn];
+        if (writing && entry.readOnly && !handleCopyOnWrite(vpn))
+            return null;
 
-            int writeLimit = Math.min(pageSize, remaining);
+        // the kernel must never write to the shared zero page
+        Lib.assertTrue(!writing || entry.ppn != UserKernel.zeroPage);
 
-            if(i == 0) {
-                writeLimit = Math.min(pageSize - startOffset - 1, amount);
-                
-            }
+        return entry;
+    }
 
-            remaining -= writeLimit;
+    /**
+     * Release a page returned by <tt>translatePage()</tt>, once the kernel has
+     * finished accessing it. Subclasses that may move pages while the kernel is
+     * using them can pin pages in <tt>translatePage()</tt> and unpin them here.
+     *
+     * @param vpn the virtual page that was accessed.
+     * @param ppn the physical page it was mapped to.
+     */
+    protected void releasePage(int vpn, int ppn) {
+    }
 
+    /**
+     * Map a demand-zero page: a page of the stack, heap or an uninitialized
+     * section that has not been touched yet. It is mapped to the shared zero
+     * page, read-only and copy-on-write, so a physical page of its own is
+     * only allocated when it is first written.
+     *
+     * @param vpn the virtual page being accessed.
+     * @return <tt>true</tt> if the page is now mapped, or <tt>false</tt> if it
+     *         lies outside this process's address space.
+     */
+    protected boolean handlePageFault(int vpn) {
+        if (vpn < 0 || vpn >= numPages || vpn >= pageTable.length || pageTable[vpn].valid)
+            return false;
 
+        UserKernel.pageAllocator.share(UserKernel.zeroPage);
 
+        pageTable[vpn] = new TranslationEntry(vpn, UserKernel.zeroPage, true, true, false, false);
+        copyOnWrite[vpn] = true;
+        return true;
+    }
 
-            // int remaining = amount - (i * pageSize);
-            // int writeLimit = Math.min(pageSize, remaining);
+    /**
+     * Make room in the page table for at least the specified number of pages.
+     * New entries are invalid. The table grows by doubling, so that a heap
+     * growing a page at a time is not copied on every <tt>sbrk()</tt>.
+     *
+     * @param pages the number of virtual pages the table must cover.
+     */
+    protected void growPageTable(int pages) {
+        if (pages <= pageTable.length)
+            return;
 
-            pageTable[vpn].used = true;
-            pageTable[vpn].dirty = true;
+        int length = Math.max(pages, pageTable.length * 2);
 
-            int start = pageTable[vpn].ppn * pageSize; // if page isnt first page, start will always be start of page
-            if (i == 0) {
-                // this is first page accessed, so take startOffset into account
-                start += startOffset;
+        TranslationEntry[] newPageTable = new TranslationEntry[length];
+        System.arraycopy(pageTable, 0, newPageTable, 0, pageTable.length);
+        for (int vpn = pageTable.length; vpn < length; vpn++)
+            newPageTable[vpn] = new TranslationEntry(vpn, 0, false, false, false, false);
 
-                // if (writeLimit == pageSize) {
-                //     writeLimit = writeLimit - startOffset;
-                // }
+        boolean[] newCopyOnWrite = new boolean[length];
+        System.arraycopy(copyOnWrite, 0, newCopyOnWrite, 0, copyOnWrite.length);
 
-            }
+        pageTable = newPageTable;
+        copyOnWrite = newCopyOnWrite;
+    }
+
+    /**
+     * Give this process a private, writable copy of a copy-on-write page. If no
+     * other process still shares the page, it is simply made writable.
+     *
+     * @param vpn the virtual page being written.
+     * @return <tt>true</tt> if the page is now writable, or <tt>false</tt> if it
+     *         is not a copy-on-write page or no physical page was free.
+     */
+    protected boolean handleCopyOnWrite(int vpn) {
+        if (vpn < 0 || vpn >= pageTable.length || !copyOnWrite[vpn])
+            return false;
 
-            System.arraycopy(data, offset + bytesWritten, memory, start, writeLimit);
-            bytesWritten += writeLimit;
+        TranslationEntry entry = pageTable[vpn];
 
-        }
+        if (UserKernel.pageAllocator.getRefCount(entry.ppn) > 1) {
+            int ppn = UserKernel.pageAllocator.allocate();
+            if (ppn < 0)
+                return false;
 
-        // System.arraycopy(data, offset, memory, vaddr, amount);
+            byte[] memory = Machine.processor().getMemory();
+            System.arraycopy(memory, entry.ppn * pageSize, memory, ppn * pageSize, pageSize);
 
-        return amount;
+            UserKernel.pageAllocator.free(entry.ppn);
+            entry.ppn = ppn;
+        }
+
+        entry.readOnly = false;
+        copyOnWrite[vpn] = false;
+        return true;
     }
 
     /**
@@ -369,26 +474,21 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
         Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-        OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-        if (executable == null) {
-            Lib.debug(dbgProcess, "\topen failed");
+        image = UserKernel.coffCache.acquire(name);
+        if (image == null) {
+            Lib.debug(dbgProcess, "\texecutable load failed");
             return false;
         }
 
-        try {
-            coff = new Coff(executable);
-        } catch (EOFException e) {
-            executable.close();
-            Lib.debug(dbgProcess, "\tcoff load failed");
-            return false;
-        }
+        coff = image.getCoff();
+        textKey = image.getKey();
 
         // make sure the sections are contiguous and start at page 0
         numPages = 0;
         for (int s = 0; s < coff.getNumSections(); s++) {
             CoffSection section = coff.getSection(s);
             if (section.getFirstVPN() != numPages) {
-                coff.close();
+                releaseImage();
                 Lib.debug(dbgProcess, "\tfragmented executable");
                 return false;
             }
@@ -404,7 +504,7 @@ public class UserProcess {
             argsSize += 4 + argv[i].length + 1;
         }
         if (argsSize > pageSize) {
-            coff.close();
+            releaseImage();
             Lib.debug(dbgProcess, "\targuments too long");
             return false;
         }
@@ -412,13 +512,18 @@ public class UserProcess {
         // program counter initially points at the program entry point
         initialPC = coff.getEntryPoint();
 
-        // next comes the stack; stack pointer initially points to top of it
+        // next comes the stack; stack pointer initially points to top of it.
+        // Stack pages are only allocated when they are first touched
+        stackPages = Config.getInteger("UserProcess.maxStackPages", 8);
         numPages += stackPages;
         initialSP = numPages * pageSize;
 
-        // and finally reserve 1 page for arguments
+        // then reserve 1 page for arguments
         numPages++;
 
+        // and finally the heap, which starts out empty and grows with sbrk()
+        heapStart = heapBreak = numPages * pageSize;
+
         if (!loadSections())
             return false;
 
@@ -450,83 +555,131 @@ public class UserProcess {
      * @return <tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-
-        if (numPages > Machine.processor().getNumPhysPages()) {
-            coff.close();
-            Lib.debug(dbgProcess, "\tinsufficient physical memory");
-            return false;
+        growPageTable(numPages);
+
+        // the stack and uninitialized sections are mapped on demand
+        int stackStart = numPages - 1 - stackPages;
+        boolean[] demandZero = new boolean[numPages];
+        for (int vpn = stackStart; vpn < stackStart + stackPages; vpn++)
+            demandZero[vpn] = true;
+
+        // map read-only sections that another process running this executable
+        // has already loaded, and only allocate pages for the rest
+        int numSections = coff.getNumSections();
+        int[][] sharedPages = new int[numSections][];
+        sharedText = new boolean[numSections];
+
+        int privatePages = numPages - stackPages;
+        for (int s = 0; s < numSections; s++) {
+            CoffSection section = coff.getSection(s);
+            if (!section.isInitialzed() && !section.isReadOnly()) {
+                for (int i = 0; i < section.getLength(); i++)
+                    demandZero[section.getFirstVPN() + i] = true;
+                privatePages -= section.getLength();
+            } else if (section.isReadOnly()) {
+                sharedPages[s] = UserKernel.textTable.acquire(textKey, s);
+                if (sharedPages[s] != null) {
+                    sharedText[s] = true;
+                    privatePages -= section.getLength();
+                }
+            }
         }
 
-        // add
-        // setup pageTable here, which maps i vpn to i ppn in constructor
-        // get free spaces from UKernel.freePages, and add these to pageTable's entries'
-        // ppn's
-        // int stackPages = 8; // this many pages are allocated for this process apart
-        // from the space it
-        // already ends up taking at load time, not sure about this yet
+        int[] ppns = UserKernel.pageAllocator.allocate(privatePages);
+        if (ppns == null) {
+            for (int s = 0; s < numSections; s++) {
+                if (sharedText[s]) {
+                    UserKernel.pageAllocator.free(sharedPages[s]);
+                    UserKernel.textTable.release(textKey, s);
+                }
+            }
+            sharedText = null;
 
-        UserKernel.lock.acquire();
-        if (numPages > UserKernel.freePhysicalPages.size()) {
-            coff.close();
+            releaseImage();
             Lib.debug(dbgProcess, "\tinsufficient physical memory");
-            UserKernel.lock.release();
             return false;
-
         }
-        UserKernel.lock.release();
-
-        for (int i = 0; i < pageTable.length; i++) {
 
-            if (i >= numPages) {
-                pageTable[i].valid = false;
-
-            } else {
-                UserKernel.lock.acquire();
+        boolean[] shared = new boolean[numPages];
+        for (int s = 0; s < numSections; s++) {
+            if (sharedText[s]) {
+                CoffSection section = coff.getSection(s);
+                for (int i = 0; i < section.getLength(); i++) {
+                    pageTable[section.getFirstVPN() + i].ppn = sharedPages[s][i];
+                    pageTable[section.getFirstVPN() + i].valid = true;
+                    shared[section.getFirstVPN() + i] = true;
+                }
+            }
+        }
 
-                pageTable[i].ppn = UserKernel.freePhysicalPages.remove(17 % UserKernel.freePhysicalPages.size());
+        int nextPrivate = 0;
+        for (int vpn = 0; vpn < numPages; vpn++) {
+            if (shared[vpn] || demandZero[vpn])
+                continue;
 
-                UserKernel.lock.release();
-            }
+            pageTable[vpn].ppn = ppns[nextPrivate++];
+            pageTable[vpn].valid = true;
         }
-        // end
 
         // load sections
 
-        for (int s = 0; s < coff.getNumSections(); s++) {
+        for (int s = 0; s < numSections; s++) {
             CoffSection section = coff.getSection(s);
+            if (!section.isInitialzed() && !section.isReadOnly())
+                continue;
 
             Lib.debug(dbgProcess,
                     "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
 
             for (int i = 0; i < section.getLength(); i++) {
+                int vpn = section.getFirstVPN() + i;
 
-                int vpn = section.getFirstVPN() + i; // we assume that they know that our pageTable config
-
-                // add
                 pageTable[vpn].readOnly = section.isReadOnly();
-                // pageTable[vpn].valid = section.isInitialzed(); // not sure about this yet
 
-                int ppn = pageTable[vpn].ppn;
+                if (!sharedText[s])
+                    section.loadPage(i, pageTable[vpn].ppn);
+            }
 
-                // end
-                // for now, just assume virtual addresses=physical addresses
-                // section.loadPage(i, vpn);
-                // add
-                section.loadPage(i, ppn);
+            if (section.isReadOnly() && !sharedText[s]) {
+                int[] sectionPages = new int[section.getLength()];
+                for (int i = 0; i < sectionPages.length; i++)
+                    sectionPages[i] = pageTable[section.getFirstVPN() + i].ppn;
 
-                // end
+                sharedText[s] = UserKernel.textTable.publish(textKey, s, sectionPages);
             }
         }
 
         return true;
     }
 
+    /**
+     * Release this process's reference to its executable image.
+     */
+    protected void releaseImage() {
+        if (image != null) {
+            UserKernel.coffCache.release(image);
+            image = null;
+        }
+    }
+
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-        // idk if we should implement this, if we do, add pages to free pages linked
-        // list here
+        if (sharedText != null) {
+            for (int s = 0; s < sharedText.length; s++) {
+                if (sharedText[s])
+                    UserKernel.textTable.release(textKey, s);
+            }
+            sharedText = null;
+        }
+
+        for (int i = 0; i < pageTable.length; i++) {
+            if (pageTable[i].valid) {
+                UserKernel.pageAllocator.free(pageTable[i].ppn);
+                pageTable[i].valid = false;
+            }
+        }
     }
 
     /**
@@ -534,11 +687,21 @@ public class UserProcess {
      * loaded into this process. Set the PC register to point at the start function,
      * set the stack pointer register to point at the top of the stack, set the A0
      * and A1 registers to argc and argv, respectively, and initialize all other
-     * registers to 0.
+     * registers to 0. A process created by <tt>fork()</tt> instead starts with
+     * its parent's registers, as they were just after the fork.
      */
     public void initRegisters() {
         Processor processor = Machine.processor();
 
+        // a forked child resumes from its parent's registers instead
+        if (forkRegisters != null) {
+            for (int i = 0; i < Processor.numUserRegisters; i++)
+                processor.writeRegister(i, forkRegisters[i]);
+
+            forkRegisters = null;
+            return;
+        }
+
         // by default, everything's 0
         for (int i = 0; i < processor.numUserRegisters; i++)
             processor.writeRegister(i, 0);
@@ -560,64 +723,353 @@ public class UserProcess {
         if (this != rootProcess)
             return 0;
 
+        UserKernel.console.flush();
         Machine.halt();
 
         Lib.assertNotReached("Machine.halt() did not halt machine!");
         return 0;
     }
 
-    // added code
+    /**
+     * Handle the creat() and open() system calls.
+     */
+    private int handleOpen(int nameAddr, boolean create) {
+        String name = readVirtualMemoryString(nameAddr, maxFileNameLength);
+        if (name == null)
+            return -1;
+
+        fileDescriptorLock.acquire();
+
+        int fileDescriptor = getFreeFileDescriptor();
+        OpenFile file = null;
+        if (fileDescriptor >= 0)
+            file = UserKernel.fileTable.open(name, create);
+
+        if (file == null) {
+            fileDescriptorLock.release();
+            return -1;
+        }
+
+        fileDescriptors[fileDescriptor] = file;
+
+        fileDescriptorLock.release();
+        return fileDescriptor;
+    }
+
     /**
      * Handle the read() system call.
      */
     private int handleRead(int fileDescriptor, int bufferAddr, int size) {
-        if (fileDescriptor != 0)
+        OpenFile file = getOpenFile(fileDescriptor);
+        if (file == null || size < 0)
             return -1;
 
-        if (size < 0) {
+        if (bufferAddr < 0 || bufferAddr > getMaxVirtualAddr())
             return -1;
+
+        // a pipe read may block, and must not hold up readers of the console
+        if (Pipe.isPipe(file))
+            return readStreamToVirtualMemory(file, bufferAddr, size);
+
+        boolean stream = isStream(file);
+        if (stream)
+            UserKernel.consoleLock.acquire();
+
+        int bytesRead = readFileToVirtualMemory(file, bufferAddr, size);
+
+        if (stream)
+            UserKernel.consoleLock.release();
+
+        return bytesRead;
+    }
+
+    /**
+     * Read from a stream that may block into this process's virtual memory. The
+     * stream is read with a single call into a kernel buffer, so the read waits
+     * at most once and returns whatever was available then.
+     *
+     * @return the number of bytes read, or -1 on error.
+     */
+    private int readStreamToVirtualMemory(OpenFile file, int vaddr, int length) {
+        byte[] buffer = new byte[Math.min(length, pageSize)];
+
+        int bytesRead = file.read(buffer, 0, buffer.length);
+        if (bytesRead <= 0)
+            return bytesRead;
+
+        return writeVirtualMemory(vaddr, buffer, 0, bytesRead);
+    }
+
+    /**
+     * Write to a stream that may block from this process's virtual memory. Each
+     * page's worth is copied into a kernel buffer before it is written, so that
+     * no frame stays pinned while the write waits.
+     *
+     * @return the number of bytes written, or -1 if the stream reported an
+     *         error before any bytes were written.
+     */
+    private int writeStreamFromVirtualMemory(OpenFile file, int vaddr, int length) {
+        byte[] buffer = new byte[Math.min(length, pageSize)];
+
+        int bytesWritten = 0;
+        while (bytesWritten < length) {
+            int amount = readVirtualMemory(vaddr + bytesWritten, buffer, 0,
+                    Math.min(length - bytesWritten, buffer.length));
+            if (amount == 0)
+                break;
+
+            int written = file.write(buffer, 0, amount);
+            if (written < 0)
+                return (bytesWritten == 0) ? -1 : bytesWritten;
+
+            bytesWritten += written;
+            if (written < amount)
+                break;
         }
 
-        if (bufferAddr < 0 || bufferAddr > getMaxVirtualAddr()) {
+        return bytesWritten;
+    }
+
+    /**
+     * Handle the write() system call.
+     */
+    private int handleWrite(int fileDescriptor, int bufferAddr, int size) {
+        OpenFile file = getOpenFile(fileDescriptor);
+        if (file == null || size < 0)
+            return -1;
+
+        if (bufferAddr < 0 || bufferAddr > getMaxVirtualAddr())
             return -1;
+
+        int bytesWritten = Pipe.isPipe(file) ? writeStreamFromVirtualMemory(file, bufferAddr, size)
+                : writeFileFromVirtualMemory(file, bufferAddr, size);
+
+        // a short write is an error
+        if (bytesWritten < size)
+            return -1;
+
+        return bytesWritten;
+    }
+
+    /**
+     * Handle the readv() system call. Fills each buffer described by the iovec
+     * array in turn, stopping early if the file runs out of data. A pipe is
+     * read at most once, into the first non-empty buffer, so that the call
+     * waits for data at most once.
+     */
+    private int handleReadv(int fileDescriptor, int iovAddr, int iovCount) {
+        OpenFile file = getOpenFile(fileDescriptor);
+        if (file == null)
+            return -1;
+
+        int[] iov = readIovec(iovAddr, iovCount);
+        if (iov == null)
+            return -1;
+
+        boolean pipe = Pipe.isPipe(file);
+        boolean stream = isStream(file);
+        if (stream)
+            UserKernel.consoleLock.acquire();
+
+        int bytesRead = 0;
+        for (int i = 0; i < iovCount; i++) {
+            int base = iov[i * 2], length = iov[i * 2 + 1];
+            if (length == 0)
+                continue;
+
+            int amount = pipe ? readStreamToVirtualMemory(file, base, length)
+                    : readFileToVirtualMemory(file, base, length);
+            if (amount < 0) {
+                if (bytesRead == 0)
+                    bytesRead = -1;
+                break;
+            }
+
+            bytesRead += amount;
+            if (amount < length || pipe)
+                break;
         }
 
-        // byte[] buf = Machine.processor().getMemory();
-        byte[] buf = new byte[size];
+        if (stream)
+            UserKernel.consoleLock.release();
 
-        UserKernel.consoleLock.acquire();
-        int readSize = stdIn.read(buf, 0, size);
-        UserKernel.consoleLock.release();
-        int bytesWritten = writeVirtualMemory(bufferAddr, buf);
+        return bytesRead;
+    }
+
+    /**
+     * Handle the writev() system call. Writes each buffer described by the
+     * iovec array in turn; as with write(), a short write is an error.
+     */
+    private int handleWritev(int fileDescriptor, int iovAddr, int iovCount) {
+        OpenFile file = getOpenFile(fileDescriptor);
+        if (file == null)
+            return -1;
+
+        int[] iov = readIovec(iovAddr, iovCount);
+        if (iov == null)
+            return -1;
 
-        // System.out.println("TESTINGGG " + readVirtualMemoryString(bufferAddr, size));
+        boolean pipe = Pipe.isPipe(file);
+
+        int bytesWritten = 0;
+        for (int i = 0; i < iovCount; i++) {
+            int base = iov[i * 2], length = iov[i * 2 + 1];
+            if (length == 0)
+                continue;
+
+            int amount = pipe ? writeStreamFromVirtualMemory(file, base, length)
+                    : writeFileFromVirtualMemory(file, base, length);
+            if (amount < length)
+                return -1;
+
+            bytesWritten += length;
+        }
 
         return bytesWritten;
     }
 
     /**
-     * Handle the write() system call.
+     * Read and check an array of <tt>struct iovec</tt> from this process's
+     * memory. Each entry is a buffer address followed by a length.
+     *
+     * @param iovAddr  the address of the array.
+     * @param iovCount the number of entries in the array.
+     * @return the entries as alternating addresses and lengths, or <tt>null</tt>
+     *         if the array or any buffer it describes is invalid.
      */
-    private int handleWrite(int fileDescriptor, int bufferAddr, int size) {
-        // System.out.println("BUFFADDR write" + bufferAddr);//5120
-        if (fileDescriptor != 1)
+    private int[] readIovec(int iovAddr, int iovCount) {
+        if (iovCount < 0 || iovCount > maxIovecs)
+            return null;
+
+        byte[] data = new byte[iovCount * 8];
+        if (readVirtualMemory(iovAddr, data) != data.length)
+            return null;
+
+        int[] iov = new int[iovCount * 2];
+        long total = 0;
+        for (int i = 0; i < iov.length; i += 2) {
+            iov[i] = Lib.bytesToInt(data, i * 4);
+            iov[i + 1] = Lib.bytesToInt(data, i * 4 + 4);
+
+            if (iov[i + 1] < 0)
+                return null;
+            if (iov[i + 1] > 0 && (iov[i] < 0 || iov[i] > getMaxVirtualAddr()))
+                return null;
+
+            total += iov[i + 1];
+        }
+
+        // the total is returned to the user, so it must fit in an int
+        if (total > Integer.MAX_VALUE)
+            return null;
+
+        return iov;
+    }
+
+    /**
+     * Handle the close() system call.
+     */
+    private int handleClose(int fileDescriptor) {
+        fileDescriptorLock.acquire();
+
+        OpenFile file = getOpenFile(fileDescriptor);
+        if (file != null)
+            fileDescriptors[fileDescriptor] = null;
+
+        fileDescriptorLock.release();
+
+        if (file == null)
+            return -1;
+
+        file.close();
+        return 0;
+    }
+
+    /**
+     * Handle the unlink() system call.
+     */
+    private int handleUnlink(int nameAddr) {
+        String name = readVirtualMemoryString(nameAddr, maxFileNameLength);
+        if (name == null)
+            return -1;
+
+        return UserKernel.fileTable.unlink(name) ? 0 : -1;
+    }
+
+    /**
+     * Return the file referred to by a file descriptor of this process.
+     *
+     * @return the open file, or <tt>null</tt> if the descriptor is not in use.
+     */
+    private OpenFile getOpenFile(int fileDescriptor) {
+        if (fileDescriptor < 0 || fileDescriptor >= maxOpenFiles)
+            return null;
+
+        return fileDescriptors[fileDescriptor];
+    }
+
+    /**
+     * Return the lowest unused file descriptor of this process, or -1 if the
+     * file descriptor table is full. The caller must hold
+     * <tt>fileDescriptorLock</tt> until it has filled the descriptor.
+     */
+    private int getFreeFileDescriptor() {
+        for (int i = 0; i < maxOpenFiles; i++) {
+            if (fileDescriptors[i] == null)
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Test whether a file is a stream, such as the console, rather than a file
+     * on disk. Streams are shared between processes, so each read holds
+     * <tt>UserKernel.consoleLock</tt> to keep it contiguous. Console writes are
+     * kept whole by the console's per-writer line buffers instead. Pipes are
+     * not included, since they keep their own reads whole.
+     */
+    private static boolean isStream(OpenFile file) {
+        return file.getFileSystem() == null && !Pipe.isPipe(file);
+    }
+
+    /**
+     * Handle the pipe() system call.
+     */
+    private int handlePipe(int fdsAddr) {
+        fileDescriptorLock.acquire();
+
+        int readFd = getFreeFileDescriptor();
+        if (readFd == -1) {
+            fileDescriptorLock.release();
             return -1;
+        }
+
+        Pipe pipe = new Pipe();
+        fileDescriptors[readFd] = pipe.openForReading();
 
-        if (size < 0) {
+        int writeFd = getFreeFileDescriptor();
+        if (writeFd == -1) {
+            fileDescriptors[readFd].close();
+            fileDescriptors[readFd] = null;
+            fileDescriptorLock.release();
             return -1;
         }
+        fileDescriptors[writeFd] = pipe.openForWriting();
+
+        fileDescriptorLock.release();
+
+        byte[] fds = new byte[8];
+        Lib.bytesFromInt(fds, 0, readFd);
+        Lib.bytesFromInt(fds, 4, writeFd);
 
-        if (bufferAddr < 0 || bufferAddr > getMaxVirtualAddr()) {
+        if (writeVirtualMemory(fdsAddr, fds) != fds.length) {
+            handleClose(readFd);
+            handleClose(writeFd);
             return -1;
         }
 
-        // byte[] buf = Machine.processor().getMemory();
-        byte[] buf = new byte[size];
-        int amountRead = readVirtualMemory(bufferAddr, buf);
-        UserKernel.consoleLock.acquire();
-        int writeSize = stdOut.write(buf, 0, amountRead);
-        UserKernel.consoleLock.release();
-        return writeSize;
+        return 0;
     }
 
     /**
@@ -637,103 +1089,429 @@ public class UserProcess {
             return -1;
         // System.out.println("FILENAME " + filename);
 
+        // argv is an array of pointers to the argument strings
         String args[] = new String[argc];
+        byte[] argPointer = new byte[4];
         for (int i = 0; i < argc; i++) {
-            args[i] = readVirtualMemoryString(argvAddr, getMaxVirtualAddr() - argvAddr + 1);
+            if (readVirtualMemory(argvAddr + i * 4, argPointer) != argPointer.length)
+                return -1;
+
+            args[i] = readVirtualMemoryString(Lib.bytesToInt(argPointer, 0), pageSize);
 
             if (args[i] == null)
                 return -1;
-
-            argvAddr += args[i].getBytes().length;
         }
-        // System.out.println("READ ARGS");
 
         UserProcess process = UserProcess.newUserProcess();
+        shareFileDescriptors(process);
+
+        // link the child before it starts, so that it finds its parent even if
+        // it exits before this thread runs again
+        childLock.acquire();
         process.parentProcess = this;
-        childProcessesId.add(process.processId);
+        children.add(process.processId);
+        childLock.release();
 
-        boolean created = process.execute(filename, args);
-        if (!created)
+        if (!process.execute(filename, args)) {
+            childLock.acquire();
+            children.remove(process.processId);
+            childLock.release();
             return -1;
+        }
 
         return process.getProcessId();
     }
 
     /**
-     * Handle the join() system call.
+     * Handle the fork() system call. The child shares every page of this
+     * process's address space. Writable pages are shared read-only and marked
+     * copy-on-write in both processes, so a page is only copied when one of them
+     * first writes it. The child also shares this process's open files.
+     *
+     * @return the child's process ID, or -1 on error.
+     */
+    protected int handleFork() {
+        UserProcess child = UserProcess.newUserProcess();
+
+        child.image = image;
+        child.coff = coff;
+        child.numPages = numPages;
+        UserKernel.coffCache.retain(image);
+
+        child.textKey = textKey;
+        if (sharedText != null) {
+            child.sharedText = sharedText.clone();
+            for (int s = 0; s < sharedText.length; s++) {
+                if (sharedText[s])
+                    UserKernel.textTable.retain(textKey, s);
+            }
+        }
+
+        child.heapStart = heapStart;
+        child.heapBreak = heapBreak;
+
+        child.growPageTable(pageTable.length);
+        for (int vpn = 0; vpn < pageTable.length; vpn++) {
+            TranslationEntry entry = pageTable[vpn];
+            if (!entry.valid) {
+                child.pageTable[vpn].valid = false;
+                continue;
+            }
+
+            UserKernel.pageAllocator.share(entry.ppn);
+            if (!entry.readOnly) {
+                entry.readOnly = true;
+                copyOnWrite[vpn] = true;
+            }
+
+            child.pageTable[vpn] = new TranslationEntry(entry);
+            child.copyOnWrite[vpn] = copyOnWrite[vpn];
+        }
+
+        shareFileDescriptors(child);
+
+        // the child returns 0 from fork(), at the instruction after the syscall
+        Processor processor = Machine.processor();
+        child.forkRegisters = new int[Processor.numUserRegisters];
+        for (int i = 0; i < Processor.numUserRegisters; i++)
+            child.forkRegisters[i] = processor.readRegister(i);
+
+        child.forkRegisters[Processor.regV0] = 0;
+        child.forkRegisters[Processor.regPC] = child.forkRegisters[Processor.regNextPC];
+        child.forkRegisters[Processor.regNextPC] += 4;
+
+        child.parentProcess = this;
+        childLock.acquire();
+        children.add(child.processId);
+        childLock.release();
+
+        child.startThread(uThread.getName());
+
+        return child.getProcessId();
+    }
+
+    /**
+     * Replace a new child's file descriptors with views of this process's open
+     * files, so the child inherits them the way it would across a UNIX
+     * <tt>fork()</tt> or <tt>exec()</tt>. Partial lines this process has
+     * written to the console are flushed first, since the child shares the
+     * console's line buffer and its output would otherwise be mixed into them.
+     *
+     * @param child the child process, which has not started running.
+     */
+    private void shareFileDescriptors(UserProcess child) {
+        for (int i = 0; i < maxOpenFiles; i++) {
+            OpenFile file = getOpenFile(i);
+            if (file != null)
+                UserKernel.console.flushLine(file);
+        }
+
+        fileDescriptorLock.acquire();
+
+        for (int i = 0; i < maxOpenFiles; i++) {
+            if (child.fileDescriptors[i] != null) {
+                child.fileDescriptors[i].close();
+                child.fileDescriptors[i] = null;
+            }
+
+            if (fileDescriptors[i] != null) {
+                if (!(fileDescriptors[i] instanceof SharedFile))
+                    fileDescriptors[i] = new SharedFile(fileDescriptors[i]);
+
+                child.fileDescriptors[i] = ((SharedFile) fileDescriptors[i]).dup();
+            }
+        }
+
+        fileDescriptorLock.release();
+    }
+
+    /**
+     * Handle the join() system call: wait for one child to exit, and reap it.
      */
     private int handleJoin(int processIdToJoin, int statusAddr) {
-        UserProcess toJoin = processIdMap.get(processIdToJoin);
+        childLock.acquire();
+
         // check if child
-        boolean isChild = childProcessesId.contains((Integer) processIdToJoin);
-        if (!isChild)
+        if (!children.contains(processIdToJoin)) {
+            childLock.release();
             return -1;
+        }
 
-        // wait until process over?
-        toJoin.uThread.join();
-        // System.out.println("JOIN ENDED");
+        UserProcess child;
+        while ((child = takeExitedChild(processIdToJoin)) == null)
+            childExited.sleep();
 
-        // remove from childproccesses
-        childProcessesId.remove((Integer) processIdToJoin);
+        childLock.release();
 
-        Integer childExitStatus = toJoin.exitStatus;
+        reapChild(child, statusAddr);
+        return child.exitedNormally ? 1 : 0;
+    }
 
-        ByteBuffer bb = ByteBuffer.allocate(4);
-        bb.putInt(childExitStatus);
+    /**
+     * Handle the waitpid() system call: reap a specific child, or any child if
+     * <i>pid</i> is -1, waiting for it to exit unless <tt>WNOHANG</tt> is set.
+     *
+     * @return the reaped child's process ID, 0 if <tt>WNOHANG</tt> is set and
+     *         no matching child has exited yet, or -1 if there is no matching
+     *         child.
+     */
+    private int handleWaitpid(int pid, int statusAddr, int flags) {
+        if (pid < -1 || (flags & ~WNOHANG) != 0)
+            return -1;
 
-        writeVirtualMemory(statusAddr, bb.array());
+        childLock.acquire();
 
-        if (childExitStatus == 0)
-            return 1;
-        return 0;
+        if (pid == -1 ? children.isEmpty() : !children.contains(pid)) {
+            childLock.release();
+            return -1;
+        }
+
+        UserProcess child;
+        while ((child = takeExitedChild(pid)) == null) {
+            if ((flags & WNOHANG) != 0) {
+                childLock.release();
+                return 0;
+            }
+            childExited.sleep();
+        }
+
+        childLock.release();
+
+        reapChild(child, statusAddr);
+        return child.processId;
+    }
+
+    /**
+     * Remove an exited child from this process's children. The caller must hold
+     * <tt>childLock</tt>.
+     *
+     * @param pid the child to take, or -1 for the child that exited first.
+     * @return the child, or <tt>null</tt> if no matching child has exited.
+     */
+    private UserProcess takeExitedChild(int pid) {
+        if (pid == -1) {
+            if (exitedChildren.isEmpty())
+                return null;
+            pid = exitedChildren.iterator().next();
+        } else if (!exitedChildren.contains(pid)) {
+            return null;
+        }
+
+        exitedChildren.remove(pid);
+        children.remove(pid);
+        return UserKernel.processTable.get(pid);
+    }
+
+    /**
+     * Store a joined child's exit status in this process's memory, and remove
+     * the child's zombie from the process table.
+     */
+    private void reapChild(UserProcess child, int statusAddr) {
+        writeVirtualMemory(statusAddr, Lib.bytesFromInt(child.exitStatus));
+        UserKernel.processTable.remove(child.processId);
     }
 
     /**
      * Handle the write() system call.
      */
     private void handleExit(int status) {
+        exitStatus = status;
+
+        // wait for the ring worker to finish with this process's files and
+        // memory before they are released
+        if (ring != null)
+            ring.shutdown();
 
-        for (int childProcessId : childProcessesId) {
-            UserProcess childProcess = processIdMap.get(childProcessId);
-            childProcess.parentProcess = null;
+        for (int i = 0; i < maxOpenFiles; i++) {
+            if (fileDescriptors[i] != null) {
+                fileDescriptors[i].close();
+                fileDescriptors[i] = null;
+            }
         }
-        childProcessesId = null;
-        if (!(rootProcess == this))
-            parentProcess.childProcessesId.remove((Integer) processId);
 
-        exitStatus = status;
-        this.stdIn.close();
-        this.stdOut.close();
-
-        for (TranslationEntry tEntry : pageTable) {
-            if (tEntry.valid) {
-                UserKernel.lock.acquire();
-                UserKernel.freePhysicalPages.add(tEntry.ppn);
-                UserKernel.lock.release();
+        unloadSections();
+        releaseImage();
+
+        reapOnExit();
+
+        if (UserKernel.processTable.exited() == 0)
+            Kernel.kernel.terminate();
+
+        KThread.finish();
+    }
+
+    /**
+     * Update the process table for this process's exit. Children that already
+     * exited are reaped, since nobody can join them any more, and the others are
+     * orphaned. This process is then queued on its parent's child-exit queue,
+     * and stays in the table as a zombie until the parent joins it, unless it
+     * is itself an orphan.
+     *
+     * <p>
+     * A child is only orphaned, and only queues itself, while holding its
+     * parent's <tt>childLock</tt>, so that a parent and child exiting at the
+     * same time cannot both leave the other's entry behind.
+     */
+    private void reapOnExit() {
+        childLock.acquire();
+
+        for (int childId : children) {
+            if (exitedChildren.contains(childId))
+                UserKernel.processTable.remove(childId);
+            else
+                UserKernel.processTable.get(childId).parentProcess = null;
+        }
+        children.clear();
+        exitedChildren.clear();
+
+        childLock.release();
+
+        boolean zombie = false;
+        UserProcess parent = parentProcess;
+        if (parent != null) {
+            parent.childLock.acquire();
+
+            // the parent may have exited since parentProcess was read
+            if (parentProcess != null) {
+                parent.exitedChildren.add(processId);
+                parent.childExited.wakeAll();
+                zombie = true;
             }
+
+            parent.childLock.release();
         }
 
-        activeProcessesLock.acquire();
-        activeProcesses--;
-        activeProcessesLock.release();
+        if (!zombie)
+            UserKernel.processTable.remove(processId);
+    }
 
-        uThread.wakeSleepingThread();
+    /**
+     * Handle the sbrk() system call: move the end of the heap by <i>delta</i>
+     * bytes. New heap pages are mapped on demand, when first touched; pages
+     * wholly above a lowered break are freed at once.
+     *
+     * @return the previous end of the heap, or -1 on error.
+     */
+    private int handleSbrk(int delta) {
+        long newBreak = (long) heapBreak + delta;
+
+        // the heap cannot shrink below empty, or grow past physical memory
+        long maxHeap = (long) Machine.processor().getNumPhysPages() * pageSize;
+        if (newBreak < heapStart || newBreak - heapStart > maxHeap)
+            return -1;
 
-        activeProcessesLock.acquire();
+        int newNumPages = (int) ((newBreak + pageSize - 1) / pageSize);
 
-        if (activeProcesses == 0) {
-            activeProcessesLock.release();
-            Kernel.kernel.terminate();
+        if (newNumPages < numPages)
+            unmapPages(newNumPages, numPages);
 
+        if (newNumPages > pageTable.length) {
+            growPageTable(newNumPages);
+            restoreState();
         }
-        activeProcessesLock.release();
 
-        KThread.finish();
+        int oldBreak = heapBreak;
+        heapBreak = (int) newBreak;
+        numPages = newNumPages;
+
+        return oldBreak;
+    }
+
+    /**
+     * Unmap a range of virtual pages, freeing any physical pages they hold.
+     *
+     * @param firstVpn the first page to unmap.
+     * @param endVpn   the page after the last one to unmap.
+     */
+    protected void unmapPages(int firstVpn, int endVpn) {
+        for (int vpn = firstVpn; vpn < endVpn && vpn < pageTable.length; vpn++) {
+            if (pageTable[vpn].valid) {
+                UserKernel.pageAllocator.free(pageTable[vpn].ppn);
+                pageTable[vpn].valid = false;
+                copyOnWrite[vpn] = false;
+            }
+        }
+    }
+
+    /**
+     * Handle the ring_setup() system call: register a submission and
+     * completion ring in this process's memory, and start a kernel worker to
+     * service it. A process may register only one ring.
+     *
+     * @return 0 on success, or -1 on error.
+     */
+    protected int handleRingSetup(int ringAddr, int entries) {
+        if (ring != null || entries <= 0 || entries > SyscallRing.maxEntries)
+            return -1;
+
+        int size = SyscallRing.size(entries);
+        if (ringAddr < 0 || ringAddr > getMaxVirtualAddr() - size + 1)
+            return -1;
+
+        ring = new SyscallRing(this, ringAddr, entries);
+        return 0;
+    }
+
+    /**
+     * Handle the ring_enter() system call.
+     */
+    private int handleRingEnter(int minComplete) {
+        if (ring == null)
+            return -1;
+
+        return ring.enter(Math.min(minComplete, SyscallRing.maxEntries));
+    }
+
+    /**
+     * Run a system call submitted through this process's syscall ring. Only
+     * calls that cannot end or replace the process may be submitted.
+     *
+     * @return the result of the call, or -1 if it may not be submitted.
+     */
+    int handleRingSyscall(int syscall, int a0, int a1, int a2) {
+        switch (syscall) {
+            case syscallCreate:
+            case syscallOpen:
+            case syscallRead:
+            case syscallWrite:
+            case syscallClose:
+            case syscallExec:
+                return handleSyscall(syscall, a0, a1, a2, 0);
+
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Handle the futex_wait() system call. Futexes are private to a process,
+     * and a process has only one thread, which is the caller, so nothing could
+     * ever wake a waiter; instead of sleeping forever, the wait always fails,
+     * as if the futex word had already changed.
+     */
+    private int handleFutexWait(int addr, int expected) {
+        return -1;
+    }
+
+    /**
+     * Handle the futex_wake() system call. Since <tt>futex_wait()</tt> never
+     * sleeps, there is never a waiter to wake.
+     */
+    private int handleFutexWake(int addr, int count) {
+        if (count < 0)
+            return -1;
 
+        return 0;
     }
 
     private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2, syscallJoin = 3, syscallCreate = 4,
-            syscallOpen = 5, syscallRead = 6, syscallWrite = 7, syscallClose = 8, syscallUnlink = 9;
+            syscallOpen = 5, syscallRead = 6, syscallWrite = 7, syscallClose = 8, syscallUnlink = 9,
+            syscallFutexWait = 13, syscallFutexWake = 14, syscallFork = 15, syscallWaitpid = 16,
+            syscallPipe = 17, syscallReadv = 18, syscallWritev = 19,
+            syscallRingSetup = 20, syscallRingEnter = 21, syscallSbrk = 22;
+
+    /** The waitpid() flag that makes it return at once if no child has exited. */
+    private static final int WNOHANG = 1;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -787,6 +1565,49 @@ public class UserProcess {
      * <td>9</td>
      * <td><tt>int  unlink(char *name);</tt></td>
      * </tr>
+     * <tr>
+     * <td>13</td>
+     * <td><tt>int  futex_wait(int *addr, int expected);</tt></td>
+     * </tr>
+     * <tr>
+     * <td>14</td>
+     * <td><tt>int  futex_wake(int *addr, int count);</tt></td>
+     * </tr>
+     * <tr>
+     * <td>15</td>
+     * <td><tt>int  fork();</tt></td>
+     * </tr>
+     * <tr>
+     * <td>16</td>
+     * <td><tt>int  waitpid(int pid, int *status, int flags);</tt></td>
+     * </tr>
+     * <tr>
+     * <td>17</td>
+     * <td><tt>int  pipe(int fds[2]);</tt></td>
+     * </tr>
+     * <tr>
+     * <td>18</td>
+     * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+     *								</tt></td>
+     * </tr>
+     * <tr>
+     * <td>19</td>
+     * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+     *								</tt></td>
+     * </tr>
+     * <tr>
+     * <td>20</td>
+     * <td><tt>int  ring_setup(struct syscall_ring *ring, int entries);
+     *								</tt></td>
+     * </tr>
+     * <tr>
+     * <td>21</td>
+     * <td><tt>int  ring_enter(int minComplete);</tt></td>
+     * </tr>
+     * <tr>
+     * <td>22</td>
+     * <td><tt>void *sbrk(int delta);</tt></td>
+     * </tr>
      * </table>
      * 
      * @param syscall the syscall number.
@@ -800,14 +1621,42 @@ public class UserProcess {
         switch (syscall) {
             case syscallHalt:
                 return handleHalt();
+            case syscallCreate:
+                return handleOpen(a0, true);
+            case syscallOpen:
+                return handleOpen(a0, false);
             case syscallRead:
                 return handleRead(a0, a1, a2);
             case syscallWrite:
                 return handleWrite(a0, a1, a2);
+            case syscallClose:
+                return handleClose(a0);
+            case syscallUnlink:
+                return handleUnlink(a0);
             case syscallExec:
                 return handleExec(a0, a1, a2);
             case syscallJoin:
                 return handleJoin(a0, a1);
+            case syscallFutexWait:
+                return handleFutexWait(a0, a1);
+            case syscallFutexWake:
+                return handleFutexWake(a0, a1);
+            case syscallFork:
+                return handleFork();
+            case syscallWaitpid:
+                return handleWaitpid(a0, a1, a2);
+            case syscallPipe:
+                return handlePipe(a0);
+            case syscallReadv:
+                return handleReadv(a0, a1, a2);
+            case syscallWritev:
+                return handleWritev(a0, a1, a2);
+            case syscallRingSetup:
+                return handleRingSetup(a0, a1);
+            case syscallRingEnter:
+                return handleRingEnter(a0);
+            case syscallSbrk:
+                return handleSbrk(a0);
             case syscallExit:
                 handleExit(a0);
                 break;
@@ -838,14 +1687,35 @@ public class UserProcess {
                 processor.advancePC();
                 break;
 
+            case Processor.exceptionReadOnly:
+                int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+                if (!handleCopyOnWrite(vpn))
+                    handleFatalException(cause);
+                break;
+
+            case Processor.exceptionPageFault:
+                if (!handlePageFault(Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr))))
+                    handleFatalException(cause);
+                break;
+
             default:
-                System.out.println("UNHANDLED EXCEPTION");
-                handleExit(-1);
-                Lib.debug(dbgProcess, "Unexpected exception: " + Processor.exceptionNames[cause]);
-                Lib.assertNotReached("Unexpected exception");
+                handleFatalException(cause);
         }
     }
 
+    /**
+     * Terminate this process because of an exception it cannot recover from.
+     *
+     * @param cause the user exception that occurred.
+     */
+    private void handleFatalException(int cause) {
+        System.out.println("UNHANDLED EXCEPTION");
+        exitedNormally = false;
+        handleExit(-1);
+        Lib.debug(dbgProcess, "Unexpected exception: " + Processor.exceptionNames[cause]);
+        Lib.assertNotReached("Unexpected exception");
+    }
+
     public int getMaxVirtualAddr() {
         return numPages * pageSize - 1;
     }
@@ -862,8 +1732,35 @@ public class UserProcess {
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
 
-    /** The number of pages in the program's stack. */
-    protected final int stackPages = 8;
+    /**
+     * Which pages of <tt>pageTable</tt> are copy-on-write: shared read-only with
+     * another process after a fork, but writable once copied.
+     */
+    protected boolean[] copyOnWrite;
+
+    /** The cached executable image this process was loaded from. */
+    private CoffCache.Image image = null;
+
+    /** Identifies the executable image this process was loaded from. */
+    private String textKey;
+
+    /**
+     * Which COFF sections of this process are mapped from the shared-text
+     * table, or <tt>null</tt> if no sections are loaded.
+     */
+    private boolean[] sharedText = null;
+
+    /** The registers a forked child starts with, or <tt>null</tt>. */
+    private int[] forkRegisters = null;
+
+    /**
+     * The number of pages reserved for the program's stack, set by the
+     * <tt>nachos.conf</tt> key <tt>UserProcess.maxStackPages</tt>.
+     */
+    protected int stackPages;
+
+    /** The start and current end of the heap, as virtual addresses. */
+    private int heapStart, heapBreak;
 
     private int initialPC, initialSP;
     private int argc, argv;
@@ -875,19 +1772,49 @@ public class UserProcess {
     private static UserProcess rootProcess = null;
 
     public UserProcess parentProcess;
-    public List<Integer> childProcessesId;
 
-    public static int processCount = 0;
-    public static int activeProcesses = 0;
-    public static HashMap<Integer, UserProcess> processIdMap = new HashMap<>();
+    /** The PIDs of this process's children that have not been joined. */
+    private HashSet<Integer> children = new HashSet<>();
+
+    /** The PIDs of exited children waiting to be joined, in order of exit. */
+    private LinkedHashSet<Integer> exitedChildren = new LinkedHashSet<>();
+
+    /** Guards <tt>exitedChildren</tt> and the children's parent links. */
+    private Lock childLock = new Lock();
+
+    /**
+     * Guards changes to the file descriptor table, which the syscall ring's
+     * worker makes concurrently with this process's own thread. It is never
+     * held while reading or writing a file, which may block indefinitely.
+     */
+    private Lock fileDescriptorLock = new Lock();
+    /** Signalled when a child of this process exits. */
+    private Condition2 childExited = new Condition2(childLock);
+
+    /** Whether this process exited without an unhandled exception. */
+    private boolean exitedNormally = true;
+
     private int processId;
     public KThread uThread;
 
-    private OpenFile stdIn, stdOut;
+    /** The maximum number of files a process may have open at once. */
+    protected static final int maxOpenFiles = 16;
+
+    /** The most buffers a single readv() or writev() may name. */
+    private static final int maxIovecs = 16;
+
+    /** The longest file name accepted by creat(), open() and unlink(). */
+    private static final int maxFileNameLength = 256;
+
+    /**
+     * This process's file descriptor table. Descriptors 0 and 1 start out as
+     * the console.
+     */
+    protected OpenFile[] fileDescriptors = new OpenFile[maxOpenFiles];
 
     public int exitStatus;
 
-    public static Lock processCountLock;
-    public static Lock activeProcessesLock;
+    /** The syscall ring registered by this process, or <tt>null</tt>. */
+    private SyscallRing ring = null;
 
 }
@@ -0,0 +1,171 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * An adaptive replacement (ARC) policy. Resident pages are split between two
+ * lists: <i>T1</i> holds pages seen once since they were loaded, and <i>T2</i>
+ * pages seen at least twice. Two ghost lists, <i>B1</i> and <i>B2</i>, remember
+ * the (pid, vpn) of pages recently evicted from each. A fault on a page in
+ * <i>B1</i> means <i>T1</i> was too small, and grows its target size
+ * <i>p</i>; a fault on a page in <i>B2</i> shrinks it. A scan of pages touched
+ * only once therefore stays in <i>T1</i>, and cannot push out a frequently
+ * used working set in <i>T2</i>.
+ *
+ * <p>
+ * Accesses through the TLB are only visible as reference bits, so, as in CAR
+ * (CLOCK with Adaptive Replacement), a page is promoted when the policy finds
+ * its reference bit set while looking for a victim, rather than at the moment
+ * of the access. Accesses the kernel sees directly promote the page at once.
+ */
+public class ArcPolicy implements ReplacementPolicy {
+    /**
+     * Allocate a new ARC policy.
+     */
+    public ArcPolicy() {
+    }
+
+    public void initialize(CoreMap coreMap) {
+        this.coreMap = coreMap;
+
+        int numFrames = coreMap.getNumFrames();
+        next = new int[numFrames];
+        prev = new int[numFrames];
+        listOf = new int[numFrames];
+    }
+
+    public void frameLoaded(int ppn) {
+        int numFrames = coreMap.getNumFrames();
+        Long key = PageMap.key(coreMap.getPid(ppn), coreMap.getVpn(ppn));
+
+        if (b1.remove(key)) {
+            // T1 was evicting pages that were wanted again
+            target = Math.min(numFrames, target + Math.max(1, b2.size() / Math.max(1, b1.size())));
+            append(ppn, t2);
+        } else if (b2.remove(key)) {
+            target = Math.max(0, target - Math.max(1, b1.size() / Math.max(1, b2.size())));
+            append(ppn, t2);
+        } else {
+            append(ppn, t1);
+
+            if (size[t1] + b1.size() > numFrames)
+                removeOldest(b1);
+            if (size[t1] + size[t2] + b1.size() + b2.size() > 2 * numFrames)
+                removeOldest(b2);
+        }
+
+        // only accesses after the load count as repeat uses
+        coreMap.clearReferenced(ppn);
+    }
+
+    public void frameAccessed(int ppn) {
+        if (listOf[ppn] != none) {
+            unlink(ppn);
+            append(ppn, t2);
+        }
+        coreMap.clearReferenced(ppn);
+    }
+
+    public void frameFreed(int ppn, boolean evicted) {
+        int list = listOf[ppn];
+        if (list == none)
+            return;
+
+        unlink(ppn);
+
+        // an evicted page leaves a ghost; an unmapped page is simply gone
+        if (evicted) {
+            Long key = PageMap.key(coreMap.getPid(ppn), coreMap.getVpn(ppn));
+            if (list == t1)
+                b1.add(key);
+            else
+                b2.add(key);
+        }
+    }
+
+    public int chooseVictim() {
+        int resident = size[t1] + size[t2];
+
+        // each step either evicts, or moves a page to the back of a list; two
+        // passes over both lists clear every reference bit along the way
+        for (int i = 0; i < 2 * resident + 1; i++) {
+            boolean fromT1 = size[t1] > 0 && (size[t1] >= Math.max(1, target) || size[t2] == 0);
+            int list = fromT1 ? t1 : t2;
+            int ppn = head[list];
+            if (ppn == -1)
+                return -1;
+
+            if (!coreMap.isEvictable(ppn)) {
+                unlink(ppn);
+                append(ppn, list);
+            } else if (coreMap.isReferenced(ppn)) {
+                coreMap.clearReferenced(ppn);
+                unlink(ppn);
+                append(ppn, t2);
+            } else {
+                return ppn;
+            }
+        }
+
+        return -1;
+    }
+
+    private void append(int ppn, int list) {
+        listOf[ppn] = list;
+        next[ppn] = -1;
+        prev[ppn] = tail[list];
+
+        if (tail[list] == -1)
+            head[list] = ppn;
+        else
+            next[tail[list]] = ppn;
+
+        tail[list] = ppn;
+        size[list]++;
+    }
+
+    private void unlink(int ppn) {
+        int list = listOf[ppn];
+
+        if (prev[ppn] == -1)
+            head[list] = next[ppn];
+        else
+            next[prev[ppn]] = next[ppn];
+
+        if (next[ppn] == -1)
+            tail[list] = prev[ppn];
+        else
+            prev[next[ppn]] = prev[ppn];
+
+        listOf[ppn] = none;
+        size[list]--;
+    }
+
+    private static void removeOldest(LinkedHashSet<Long> ghosts) {
+        Iterator<Long> oldest = ghosts.iterator();
+        if (oldest.hasNext()) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    private static final int none = 0, t1 = 1, t2 = 2;
+
+    private CoreMap coreMap;
+
+    /** The resident lists, as doubly linked lists of frames, oldest first. */
+    private int[] next, prev, listOf;
+    private int[] head = { -1, -1, -1 }, tail = { -1, -1, -1 }, size = new int[3];
+
+    /** The ghost lists of (pid, vpn) keys, oldest first. */
+    private LinkedHashSet<Long> b1 = new LinkedHashSet<Long>(), b2 = new LinkedHashSet<Long>();
+
+    /** The target size of T1. */
+    private int target = 0;
+}
@@ -0,0 +1,59 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The CLOCK (second-chance) replacement policy. A hand sweeps over the frames
+ * in order. A frame whose page has been referenced since the hand last passed
+ * has its reference bit cleared and is skipped; the first unreferenced frame
+ * is evicted.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+    /**
+     * Allocate a new CLOCK policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public void initialize(CoreMap coreMap) {
+        this.coreMap = coreMap;
+    }
+
+    public void frameLoaded(int ppn) {
+    }
+
+    public void frameAccessed(int ppn) {
+    }
+
+    public void frameFreed(int ppn, boolean evicted) {
+    }
+
+    public int chooseVictim() {
+        int numFrames = coreMap.getNumFrames();
+
+        // the first sweep may only clear reference bits; the second then
+        // finds a victim unless every frame is pinned
+        for (int i = 0; i < 2 * numFrames; i++) {
+            int ppn = hand;
+            hand = (hand + 1) % numFrames;
+
+            if (!coreMap.isEvictable(ppn))
+                continue;
+
+            if (coreMap.isReferenced(ppn)) {
+                coreMap.clearReferenced(ppn);
+                continue;
+            }
+
+            return ppn;
+        }
+
+        return -1;
+    }
+
+    private CoreMap coreMap;
+    private int hand = 0;
+}
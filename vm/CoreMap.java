@@ -0,0 +1,308 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The core map: what each physical page of memory holds. For every frame it
+ * records the virtual page (pid, vpn) loaded into it, whether the frame is
+ * pinned, and whether the page has been referenced or dirtied since it was
+ * loaded. Together with <tt>VMKernel.invertedPageTable</tt>, which maps
+ * virtual pages to frames, this lets the kernel find the owner of any frame
+ * it wants to evict.
+ *
+ * <p>
+ * The processor sets the used and dirty bits of TLB entries, not of the core
+ * map. They are folded back into the core map whenever a TLB entry is
+ * replaced or invalidated, so the core map is up to date for every page that
+ * is not currently in the TLB.
+ *
+ * <p>
+ * Which frame to evict is left to a <tt>ReplacementPolicy</tt>, which the core
+ * map keeps informed as frames are loaded, accessed and freed.
+ *
+ * <p>
+ * Callers must hold <tt>VMKernel.memoryLock</tt>.
+ */
+public class CoreMap {
+    /**
+     * Allocate a new core map in which every frame is empty.
+     *
+     * @param numFrames the number of physical pages.
+     * @param policy    the policy that chooses frames to evict.
+     */
+    public CoreMap(int numFrames, ReplacementPolicy policy) {
+        this.policy = policy;
+
+        pids = new int[numFrames];
+        vpns = new int[numFrames];
+        pinCounts = new int[numFrames];
+        referenced = new boolean[numFrames];
+        dirty = new boolean[numFrames];
+
+        for (int ppn = 0; ppn < numFrames; ppn++)
+            pids[ppn] = -1;
+
+        policy.initialize(this);
+    }
+
+    /**
+     * Return the number of frames in this core map.
+     *
+     * @return the number of physical pages.
+     */
+    public int getNumFrames() {
+        return pids.length;
+    }
+
+    /**
+     * Record that a virtual page has been loaded into a frame. The page starts
+     * out referenced and clean.
+     *
+     * @param ppn the frame.
+     * @param pid the process that owns the page.
+     * @param vpn the virtual page number.
+     */
+    public void load(int ppn, int pid, int vpn) {
+        Lib.assertTrue(pids[ppn] == -1);
+
+        pids[ppn] = pid;
+        vpns[ppn] = vpn;
+        referenced[ppn] = true;
+        dirty[ppn] = false;
+
+        policy.frameLoaded(ppn);
+    }
+
+    /**
+     * Record that a frame no longer holds a page.
+     *
+     * @param ppn     the frame.
+     * @param evicted <tt>true</tt> if the page was evicted, and <tt>false</tt>
+     *                if it was unmapped.
+     */
+    public void free(int ppn, boolean evicted) {
+        Lib.assertTrue(pids[ppn] != -1 && pinCounts[ppn] == 0);
+
+        policy.frameFreed(ppn, evicted);
+        pids[ppn] = -1;
+    }
+
+    /**
+     * Return the process owning the page in a frame.
+     *
+     * @param ppn the frame.
+     * @return the owner's process ID, or -1 if the frame is empty.
+     */
+    public int getPid(int ppn) {
+        return pids[ppn];
+    }
+
+    /**
+     * Return the virtual page number of the page in a frame.
+     *
+     * @param ppn the frame.
+     * @return the virtual page number.
+     */
+    public int getVpn(int ppn) {
+        return vpns[ppn];
+    }
+
+    /**
+     * Note that the page in a frame has been accessed, other than through a
+     * TLB entry's used bit.
+     *
+     * @param ppn     the frame.
+     * @param written <tt>true</tt> if the page was written.
+     */
+    public void markUsed(int ppn, boolean written) {
+        referenced[ppn] = true;
+        if (written)
+            dirty[ppn] = true;
+
+        policy.frameAccessed(ppn);
+    }
+
+    /**
+     * Test whether the page in a frame has been referenced since its reference
+     * bit was last cleared.
+     *
+     * @param ppn the frame.
+     * @return <tt>true</tt> if the page was referenced.
+     */
+    public boolean isReferenced(int ppn) {
+        return referenced[ppn];
+    }
+
+    /**
+     * Clear the reference bit of a frame.
+     *
+     * @param ppn the frame.
+     */
+    public void clearReferenced(int ppn) {
+        referenced[ppn] = false;
+    }
+
+    /**
+     * Note that the page in a frame has been written.
+     *
+     * @param ppn the frame.
+     */
+    public void markDirty(int ppn) {
+        dirty[ppn] = true;
+    }
+
+    /**
+     * Note that the page in a frame has been written back, so that it matches
+     * its copy in swap.
+     *
+     * @param ppn the frame.
+     */
+    public void clearDirty(int ppn) {
+        dirty[ppn] = false;
+    }
+
+    /**
+     * Test whether the page in a frame has been written since it was loaded or
+     * last written back.
+     *
+     * @param ppn the frame.
+     * @return <tt>true</tt> if the page is dirty.
+     */
+    public boolean isDirty(int ppn) {
+        return dirty[ppn];
+    }
+
+    /**
+     * Prevent a frame from being evicted. Frames may be pinned more than once,
+     * and stay pinned until unpinned as many times.
+     *
+     * @param ppn the frame.
+     */
+    public void pin(int ppn) {
+        pinCounts[ppn]++;
+    }
+
+    /**
+     * Undo one <tt>pin()</tt> of a frame.
+     *
+     * @param ppn the frame.
+     */
+    public void unpin(int ppn) {
+        Lib.assertTrue(pinCounts[ppn] > 0);
+        pinCounts[ppn]--;
+    }
+
+    /**
+     * Test whether a frame is pinned.
+     *
+     * @param ppn the frame.
+     * @return <tt>true</tt> if the frame is pinned.
+     */
+    public boolean isPinned(int ppn) {
+        return pinCounts[ppn] > 0;
+    }
+
+    /**
+     * Test whether a frame may be evicted.
+     *
+     * @param ppn the frame.
+     * @return <tt>true</tt> if the frame holds a page and is not pinned.
+     */
+    public boolean isEvictable(int ppn) {
+        return pids[ppn] != -1 && pinCounts[ppn] == 0;
+    }
+
+    /**
+     * Choose a frame to evict. The reference bits of pages in the TLB are
+     * brought up to date first, so the policy sees every access.
+     *
+     * @return the frame to evict, or -1 if every frame is pinned or empty.
+     */
+    public int chooseVictim() {
+        syncTLB();
+
+        int ppn = policy.chooseVictim();
+        Lib.assertTrue(ppn == -1 || isEvictable(ppn));
+        return ppn;
+    }
+
+    /**
+     * Fold the used and dirty bits of a TLB entry into the core map.
+     *
+     * @param entry the TLB entry.
+     */
+    public void syncEntry(TranslationEntry entry) {
+        if (entry.valid && pids[entry.ppn] != -1 && vpns[entry.ppn] == entry.vpn) {
+            if (entry.used)
+                referenced[entry.ppn] = true;
+            if (entry.dirty)
+                dirty[entry.ppn] = true;
+        }
+    }
+
+    /**
+     * Fold the bits of every TLB entry into the core map, and clear the used
+     * bits in the TLB, so that a later access sets them again. The TLB entries
+     * stay valid.
+     */
+    public void syncTLB() {
+        Processor processor = Machine.processor();
+
+        for (int i = 0; i < processor.getTLBSize(); i++) {
+            TranslationEntry entry = processor.readTLBEntry(i);
+            if (entry.valid && entry.used) {
+                syncEntry(entry);
+                entry.used = false;
+                processor.writeTLBEntry(i, entry);
+            }
+        }
+    }
+
+    /**
+     * Fold the bits of every TLB entry into the core map, and invalidate the
+     * entire TLB. Called when the running process changes.
+     */
+    public void flushTLB() {
+        Processor processor = Machine.processor();
+
+        for (int i = 0; i < processor.getTLBSize(); i++) {
+            TranslationEntry entry = processor.readTLBEntry(i);
+            if (entry.valid) {
+                syncEntry(entry);
+                entry.valid = false;
+                processor.writeTLBEntry(i, entry);
+            }
+        }
+    }
+
+    /**
+     * Fold the bits of any TLB entry that maps a frame into the core map, and
+     * invalidate the entry. The TLB only ever holds entries of the running
+     * process, so at most one entry can map the frame.
+     *
+     * @param ppn the frame.
+     */
+    public void invalidateTLB(int ppn) {
+        Processor processor = Machine.processor();
+
+        for (int i = 0; i < processor.getTLBSize(); i++) {
+            TranslationEntry entry = processor.readTLBEntry(i);
+            if (entry.valid && entry.ppn == ppn) {
+                syncEntry(entry);
+                entry.valid = false;
+                processor.writeTLBEntry(i, entry);
+            }
+        }
+    }
+
+    private int[] pids;
+    private int[] vpns;
+    private int[] pinCounts;
+    private boolean[] referenced;
+    private boolean[] dirty;
+
+    private ReplacementPolicy policy;
+}
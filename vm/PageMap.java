@@ -0,0 +1,234 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from virtual pages to non-negative integers, such as physical
+ * page numbers or swap slots. A virtual page is identified by the pair (pid,
+ * vpn), packed into a single <tt>long</tt> by <tt>key()</tt>.
+ *
+ * <p>
+ * The map uses open addressing with linear probing over parallel arrays of
+ * keys and values, so lookups and updates allocate nothing and box nothing.
+ * It is not synchronized: none of its operations can block or be preempted,
+ * so it is safe to use from any kernel thread.
+ */
+public class PageMap {
+    /**
+     * Allocate a new, empty map.
+     */
+    public PageMap() {
+        this(16);
+    }
+
+    /**
+     * Allocate a new, empty map with room for the specified number of entries
+     * before it has to grow.
+     *
+     * @param expected the number of entries expected.
+     */
+    public PageMap(int expected) {
+        int capacity = 2;
+        while (capacity < expected * 2)
+            capacity *= 2;
+
+        allocate(capacity);
+    }
+
+    /**
+     * Pack a process ID and virtual page number into a key.
+     *
+     * @param pid the process ID.
+     * @param vpn the virtual page number.
+     * @return the key for the page.
+     */
+    public static long key(int pid, int vpn) {
+        return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Return the process ID packed into a key.
+     *
+     * @param key the key.
+     * @return the key's process ID.
+     */
+    public static int pid(long key) {
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * Return the virtual page number packed into a key.
+     *
+     * @param key the key.
+     * @return the key's virtual page number.
+     */
+    public static int vpn(long key) {
+        return (int) key;
+    }
+
+    /**
+     * Return the value mapped to a key.
+     *
+     * @param key the key to look up.
+     * @return the value, or -1 if the key is not mapped.
+     */
+    public int get(long key) {
+        int slot = find(key);
+        return (slot < 0) ? -1 : values[slot];
+    }
+
+    /**
+     * Test whether a key is mapped.
+     *
+     * @param key the key to look up.
+     * @return <tt>true</tt> if the key is mapped.
+     */
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Map a key to a value, replacing any previous value.
+     *
+     * @param key   the key.
+     * @param value the value, which must not be negative.
+     * @return the previous value, or -1 if the key was not mapped.
+     */
+    public int put(long key, int value) {
+        Lib.assertTrue(key != empty && value >= 0);
+
+        int slot = find(key);
+        if (slot >= 0) {
+            int previous = values[slot];
+            values[slot] = value;
+            return previous;
+        }
+
+        if ((size + 1) * 2 > keys.length)
+            resize(keys.length * 2);
+
+        slot = hash(key);
+        while (keys[slot] != empty)
+            slot = (slot + 1) & mask;
+
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        return -1;
+    }
+
+    /**
+     * Remove a key from the map.
+     *
+     * @param key the key to remove.
+     * @return the value it was mapped to, or -1 if it was not mapped.
+     */
+    public int remove(long key) {
+        int slot = find(key);
+        if (slot < 0)
+            return -1;
+
+        int value = values[slot];
+        size--;
+
+        // shift later entries of the probe sequence back, so that no lookup
+        // stops early at the hole left behind
+        int hole = slot;
+        for (int next = (hole + 1) & mask; keys[next] != empty; next = (next + 1) & mask) {
+            int home = hash(keys[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+        keys[hole] = empty;
+
+        return value;
+    }
+
+    /**
+     * Return the keys of every page of one process in the map.
+     *
+     * @param pid the process ID.
+     * @return the keys, in no particular order.
+     */
+    public long[] keysOf(int pid) {
+        int count = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != empty && pid(keys[slot]) == pid)
+                count++;
+        }
+
+        long[] result = new long[count];
+        int i = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != empty && pid(keys[slot]) == pid)
+                result[i++] = keys[slot];
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the number of keys in the map.
+     *
+     * @return the size of the map.
+     */
+    public int size() {
+        return size;
+    }
+
+    private int find(long key) {
+        for (int slot = hash(key); keys[slot] != empty; slot = (slot + 1) & mask) {
+            if (keys[slot] == key)
+                return slot;
+        }
+
+        return -1;
+    }
+
+    private int hash(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+
+        Arrays.fill(keys, empty);
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+
+        allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == empty)
+                continue;
+
+            int slot = hash(oldKeys[i]);
+            while (keys[slot] != empty)
+                slot = (slot + 1) & mask;
+
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    /** Marks an unused slot. No key can equal this, since PIDs are never -1. */
+    private static final long empty = -1L;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+}
@@ -0,0 +1,60 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * A page replacement policy: decides which frame to evict when memory is full.
+ * The policy is told when frames are loaded, accessed and freed, and can read
+ * each frame's reference and dirty bits from the core map. The core map brings
+ * those bits up to date from the TLB before asking the policy for a victim.
+ *
+ * <p>
+ * The policy used by <tt>VMKernel</tt> is chosen with the
+ * <tt>nachos.conf</tt> key <tt>VMKernel.replacementPolicy</tt>. All methods
+ * are called with <tt>VMKernel.memoryLock</tt> held.
+ */
+public interface ReplacementPolicy {
+    /**
+     * Prepare to manage the frames of a core map.
+     *
+     * @param coreMap the core map whose frames this policy chooses among.
+     */
+    public void initialize(CoreMap coreMap);
+
+    /**
+     * Called when a page has been loaded into a frame.
+     *
+     * @param ppn the frame.
+     */
+    public void frameLoaded(int ppn);
+
+    /**
+     * Called when the kernel learns that the page in a frame was accessed,
+     * other than through the reference bit: on a TLB miss for a resident page,
+     * or when the kernel copies to or from the page.
+     *
+     * @param ppn the frame.
+     */
+    public void frameAccessed(int ppn);
+
+    /**
+     * Called when the page in a frame has been evicted or unmapped. The core
+     * map still records which page the frame held.
+     *
+     * @param ppn     the frame.
+     * @param evicted <tt>true</tt> if the page was evicted, and <tt>false</tt>
+     *                if it was unmapped.
+     */
+    public void frameFreed(int ppn, boolean evicted);
+
+    /**
+     * Choose a frame to evict. Only frames for which
+     * <tt>CoreMap.isEvictable()</tt> is true may be chosen.
+     *
+     * @return the frame to evict, or -1 if no frame can be evicted.
+     */
+    public int chooseVictim();
+}
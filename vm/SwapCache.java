@@ -0,0 +1,196 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compressed cache of swapped-out pages, kept in host memory in front of the
+ * swap file. A page written back is compressed and stored here if it fits in
+ * the cache's byte budget, and only goes to the swap file if it does not, or
+ * if it does not compress. Paging it back in then costs a decompression
+ * instead of a stub file system read. Pages that are entirely zero, which are
+ * common, are stored without compressing them at all.
+ *
+ * <p>
+ * Like a swap slot, an entry stays valid while its page is resident and
+ * clean, so that the page can be evicted again without being compressed
+ * again; it must be freed when the page is written. Unlike a swap slot, an
+ * entry is dropped when its page is read back, so that cold pages are what
+ * occupy the cache.
+ *
+ * <p>
+ * Callers must hold <tt>VMKernel.memoryLock</tt>.
+ */
+public class SwapCache {
+    /**
+     * Allocate a new, empty swap cache.
+     *
+     * @param capacity the most bytes of compressed data to hold.
+     */
+    public SwapCache(long capacity) {
+        Lib.assertTrue(capacity >= 0);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Test whether a page has a copy in the cache.
+     *
+     * @param key the page, as returned by <tt>PageMap.key()</tt>.
+     * @return <tt>true</tt> if the page is cached.
+     */
+    public boolean contains(long key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Compress a page and store it, replacing any copy already stored.
+     *
+     * @param key    the page, as returned by <tt>PageMap.key()</tt>.
+     * @param memory the array holding the page.
+     * @param offset the offset of the page in <i>memory</i>.
+     * @return <tt>true</tt> if the page was stored, or <tt>false</tt> if it does
+     *         not compress or the cache is full, in which case no copy of it
+     *         is left in the cache.
+     */
+    public boolean put(long key, byte[] memory, int offset) {
+        free(key);
+
+        byte[] data;
+        if (isZero(memory, offset)) {
+            data = zeroPage;
+        } else {
+            deflater.reset();
+            deflater.setInput(memory, offset, pageSize);
+            deflater.finish();
+
+            int length = deflater.deflate(buffer);
+            if (!deflater.finished() || length >= pageSize)
+                return false;
+
+            data = new byte[length];
+            System.arraycopy(buffer, 0, data, 0, length);
+        }
+
+        if (usedBytes + data.length + entryOverhead > capacity)
+            return false;
+
+        int handle = numFreeHandles > 0 ? freeHandles[--numFreeHandles] : newHandle();
+        entries[handle] = data;
+        index.put(key, handle);
+        usedBytes += data.length + entryOverhead;
+        return true;
+    }
+
+    /**
+     * Decompress a page into memory and drop it from the cache.
+     *
+     * @param key    the page, as returned by <tt>PageMap.key()</tt>.
+     * @param memory the array to decompress the page into.
+     * @param offset the offset of the page in <i>memory</i>.
+     * @return <tt>true</tt> if the page was cached and has been decompressed.
+     */
+    public boolean take(long key, byte[] memory, int offset) {
+        int handle = index.get(key);
+        if (handle == -1)
+            return false;
+
+        byte[] data = entries[handle];
+        boolean success = true;
+
+        if (data == zeroPage) {
+            for (int i = 0; i < pageSize; i++)
+                memory[offset + i] = 0;
+        } else {
+            inflater.reset();
+            inflater.setInput(data);
+            try {
+                success = inflater.inflate(memory, offset, pageSize) == pageSize;
+            } catch (DataFormatException e) {
+                success = false;
+            }
+        }
+
+        free(key);
+        return success;
+    }
+
+    /**
+     * Drop the copy of a page, if there is one.
+     *
+     * @param key the page, as returned by <tt>PageMap.key()</tt>.
+     */
+    public void free(long key) {
+        int handle = index.remove(key);
+        if (handle == -1)
+            return;
+
+        usedBytes -= entries[handle].length + entryOverhead;
+        entries[handle] = null;
+        freeHandles[numFreeHandles++] = handle;
+    }
+
+    /**
+     * Return the number of bytes the cache currently holds.
+     *
+     * @return the bytes in use, counting a fixed overhead per entry.
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    private static boolean isZero(byte[] memory, int offset) {
+        for (int i = 0; i < pageSize; i++) {
+            if (memory[offset + i] != 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Return an unused handle, growing the entry table if necessary.
+     */
+    private int newHandle() {
+        if (numHandles == entries.length) {
+            byte[][] grown = new byte[entries.length * 2][];
+            System.arraycopy(entries, 0, grown, 0, entries.length);
+            entries = grown;
+
+            int[] grownFree = new int[grown.length];
+            System.arraycopy(freeHandles, 0, grownFree, 0, numFreeHandles);
+            freeHandles = grownFree;
+        }
+
+        return numHandles++;
+    }
+
+    private static final int pageSize = Processor.pageSize;
+
+    /** The bytes each entry is charged beyond its data. */
+    private static final int entryOverhead = 32;
+
+    /** The shared data of every all-zero page. */
+    private static final byte[] zeroPage = new byte[0];
+
+    private long capacity;
+    private long usedBytes = 0;
+
+    /** The handle of the entry holding each cached page. */
+    private PageMap index = new PageMap();
+
+    /** The compressed data of each entry, indexed by handle. */
+    private byte[][] entries = new byte[16][];
+    private int numHandles = 0;
+    private int[] freeHandles = new int[16];
+    private int numFreeHandles = 0;
+
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private Inflater inflater = new Inflater();
+    private byte[] buffer = new byte[pageSize];
+}
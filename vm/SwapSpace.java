@@ -0,0 +1,238 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.Arrays;
+
+/**
+ * The swap space: a file divided into page-sized slots, holding the contents
+ * of virtual pages that have been evicted from memory. Each virtual page
+ * (pid, vpn) has at most one slot. Free slots are tracked in a bitmap with one
+ * bit per slot, and the lowest free slots are always reused first, so the
+ * file only grows when no run of free slots in it is long enough.
+ *
+ * <p>
+ * Pages are written in clusters: virtually adjacent pages of one process are
+ * given contiguous slots and written with one write, so that they can be read
+ * back together with one read as well.
+ *
+ * <p>
+ * A page keeps its slot after it is swapped back in, so that it can be evicted
+ * again without being written as long as it stays clean. Once the page is
+ * written, the copy in its slot is stale, and the slot should be freed.
+ *
+ * <p>
+ * Callers must hold <tt>VMKernel.memoryLock</tt>, except while writing to
+ * slots reserved with <tt>beginWrite()</tt>.
+ */
+public class SwapSpace {
+    /**
+     * Allocate a new swap space backed by the specified file. Any data already
+     * in the file is ignored.
+     *
+     * @param file the swap file.
+     */
+    public SwapSpace(OpenFile file) {
+        this.file = file;
+
+        freeMap = new long[1];
+        busyMap = new long[1];
+        freeMap[0] = -1L;
+    }
+
+    /**
+     * Test whether a virtual page has a copy in swap.
+     *
+     * @param key the page, as returned by <tt>PageMap.key()</tt>.
+     * @return <tt>true</tt> if the page has a slot.
+     */
+    public boolean contains(long key) {
+        return slots.containsKey(key);
+    }
+
+    /**
+     * Return the slot holding a page.
+     *
+     * @param key the page, as returned by <tt>PageMap.key()</tt>.
+     * @return the page's slot, or -1 if it has none.
+     */
+    public int getSlot(long key) {
+        return slots.get(key);
+    }
+
+    /**
+     * Give a cluster of pages contiguous slots to be written to, in order, with
+     * a single write. Any slots the pages already had are stale and are freed,
+     * except that a lone page keeps its slot. The new slots stay reserved until
+     * <tt>endWrite()</tt> is called, even if a page loses its slot in the
+     * meantime, so that a slot cannot be handed to another page while it is
+     * still being written.
+     *
+     * @param keys the pages, as returned by <tt>PageMap.key()</tt>.
+     * @return the first of the slots to pass to <tt>writeSlots()</tt>.
+     */
+    public int beginWrite(long[] keys) {
+        int first;
+        if (keys.length == 1 && slots.containsKey(keys[0])) {
+            first = slots.get(keys[0]);
+        } else {
+            for (int i = 0; i < keys.length; i++)
+                free(keys[i]);
+
+            first = allocate(keys.length);
+            for (int i = 0; i < keys.length; i++)
+                slots.put(keys[i], first + i);
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            Lib.assertTrue(!isSet(busyMap, first + i));
+            setBit(busyMap, first + i, true);
+        }
+
+        return first;
+    }
+
+    /**
+     * Write the contents of consecutive pages to slots reserved by
+     * <tt>beginWrite()</tt>, with a single write. This is the only method that
+     * may be called without holding <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param first the first reserved slot.
+     * @param pages the contents of the pages, one after another.
+     * @return <tt>true</tt> if the pages were written.
+     */
+    public boolean writeSlots(int first, byte[] pages) {
+        return file.write(first * pageSize, pages, 0, pages.length) == pages.length;
+    }
+
+    /**
+     * Finish a write started by <tt>beginWrite()</tt>. A slot whose page lost
+     * it during the write is freed; if the write failed, every page loses its
+     * slot.
+     *
+     * @param keys    the pages passed to <tt>beginWrite()</tt>.
+     * @param first   the first reserved slot.
+     * @param written <tt>true</tt> if the write succeeded.
+     */
+    public void endWrite(long[] keys, int first, boolean written) {
+        for (int i = 0; i < keys.length; i++) {
+            setBit(busyMap, first + i, false);
+
+            if (slots.get(keys[i]) != first + i)
+                release(first + i);
+            else if (!written)
+                free(keys[i]);
+        }
+    }
+
+    /**
+     * Read the contents of consecutive slots with a single read.
+     *
+     * @param first the first slot.
+     * @param pages the buffer to read into, a whole number of pages long.
+     * @return <tt>true</tt> if the slots were read.
+     */
+    public boolean readSlots(int first, byte[] pages) {
+        return file.read(first * pageSize, pages, 0, pages.length) == pages.length;
+    }
+
+    /**
+     * Free the slot of a page, if it has one.
+     *
+     * @param key the page, as returned by <tt>PageMap.key()</tt>.
+     */
+    public void free(long key) {
+        int slot = slots.remove(key);
+        if (slot != -1 && !isSet(busyMap, slot))
+            release(slot);
+    }
+
+    /**
+     * Return the number of slots currently holding a page.
+     *
+     * @return the number of slots in use.
+     */
+    public int getNumUsedSlots() {
+        return numUsedSlots;
+    }
+
+    /**
+     * Take the lowest run of <i>count</i> free slots, growing the bitmaps
+     * until there is one.
+     */
+    private int allocate(int count) {
+        int first = findRun(count);
+        while (first == -1) {
+            int words = freeMap.length;
+            freeMap = Arrays.copyOf(freeMap, words * 2);
+            busyMap = Arrays.copyOf(busyMap, words * 2);
+            Arrays.fill(freeMap, words, words * 2, -1L);
+
+            first = findRun(count);
+        }
+
+        for (int i = 0; i < count; i++)
+            setBit(freeMap, first + i, false);
+        numUsedSlots += count;
+        return first;
+    }
+
+    /**
+     * Return the first slot of the lowest run of <i>count</i> free slots, or -1
+     * if there is none.
+     */
+    private int findRun(int count) {
+        int numSlots = freeMap.length * 64;
+
+        int start = 0;
+        while (start + count <= numSlots) {
+            if (!isSet(freeMap, start)) {
+                start++;
+                continue;
+            }
+
+            int end = start + 1;
+            while (end < start + count && isSet(freeMap, end))
+                end++;
+
+            if (end == start + count)
+                return start;
+
+            start = end + 1;
+        }
+
+        return -1;
+    }
+
+    private void release(int slot) {
+        setBit(freeMap, slot, true);
+        numUsedSlots--;
+    }
+
+    private static boolean isSet(long[] map, int slot) {
+        return (map[slot >>> 6] & (1L << (slot & 63))) != 0;
+    }
+
+    private static void setBit(long[] map, int slot, boolean set) {
+        if (set)
+            map[slot >>> 6] |= (1L << (slot & 63));
+        else
+            map[slot >>> 6] &= ~(1L << (slot & 63));
+    }
+
+    private static final int pageSize = Processor.pageSize;
+
+    private OpenFile file;
+
+    /** The slot holding each page in swap. */
+    private PageMap slots = new PageMap();
+
+    /** One bit per slot; a set bit means the slot is free. */
+    private long[] freeMap;
+    /** One bit per slot; a set bit means the slot is being written. */
+    private long[] busyMap;
+    private int numUsedSlots = 0;
+}
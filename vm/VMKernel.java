@@ -5,8 +5,6 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
-import java.util.Hashtable;
-
 /**
  * A kernel that can support multiple demand-paging user processes.
  */
@@ -23,10 +21,30 @@ public class VMKernel extends UserKernel {
      * Initialize this kernel.
      */
     public void initialize(String[] args) {
-        
-
         super.initialize(args);
-        swapFile = Machine.stubFileSystem().open("swap", true);
+
+        ReplacementPolicy policy = (ReplacementPolicy) Lib
+                .constructObject(Config.getString("VMKernel.replacementPolicy", "nachos.vm.ClockPolicy"));
+        coreMap = new CoreMap(Machine.processor().getNumPhysPages(), policy);
+        memoryLock = new Lock();
+        unpinned = new Condition2(memoryLock);
+        pageoutNeeded = new Condition2(memoryLock);
+
+        swapFile = Machine.stubFileSystem().open(swapFileName, true);
+        swapSpace = new SwapSpace(swapFile);
+        double swapCacheFraction = Config.getDouble("VMKernel.swapCacheFraction", 1.0 / 16);
+        swapCache = new SwapCache((long) (Runtime.getRuntime().maxMemory() * swapCacheFraction));
+
+        int numPhysPages = Machine.processor().getNumPhysPages();
+        freeFramesLow = Config.getInteger("VMKernel.freeFramesLow", Math.max(1, numPhysPages / 8));
+        freeFramesHigh = Config.getInteger("VMKernel.freeFramesHigh", Math.max(freeFramesLow + 1, numPhysPages / 4));
+        maxSwapCluster = Math.max(1, Config.getInteger("VMKernel.maxSwapCluster", 8));
+
+        new KThread(new Runnable() {
+            public void run() {
+                pageout();
+            }
+        }).setName("pageout").fork();
     }
 
     /**
@@ -47,22 +65,251 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+        swapFile.close();
+        Machine.stubFileSystem().remove(swapFileName);
+
         super.terminate();
     }
 
+    /**
+     * Allocate a physical page for a virtual page about to be loaded. The
+     * pageout daemon is woken when free pages run low, so that it can free
+     * more before they run out; if they already have, another page is evicted
+     * here. The caller must hold <tt>memoryLock</tt>.
+     *
+     * @return the physical page, or -1 if every page is pinned or the evicted
+     *         page could not be written to swap.
+     */
+    public static int allocateFrame() {
+        int ppn = allocateFreeFrame();
+        if (ppn != -1)
+            return ppn;
+
+        ppn = coreMap.chooseVictim();
+        if (ppn == -1 || !evict(ppn))
+            return -1;
+
+        return ppn;
+    }
+
+    /**
+     * Allocate a free physical page without evicting anything, as for pages
+     * loaded speculatively. The caller must hold <tt>memoryLock</tt>.
+     *
+     * @return the physical page, or -1 if no page is free.
+     */
+    public static int allocateFreeFrame() {
+        int ppn = pageAllocator.allocate();
+
+        if (pageAllocator.getNumFreePages() < freeFramesLow)
+            pageoutNeeded.wake();
+
+        return ppn;
+    }
+
+    /**
+     * Evict the page held by a frame, leaving the frame allocated but empty. A
+     * dirty page is written to swap first, along with its dirty neighbors; a
+     * clean page can be reloaded from where it came from, whether that is swap,
+     * the executable, or zeros.
+     *
+     * @param ppn the frame to evict.
+     * @return <tt>true</tt> if the page was evicted.
+     */
+    private static boolean evict(int ppn) {
+        coreMap.invalidateTLB(ppn);
+
+        long key = PageMap.key(coreMap.getPid(ppn), coreMap.getVpn(ppn));
+        Lib.debug(dbgVM, "evicting page " + coreMap.getVpn(ppn) + " of process " + coreMap.getPid(ppn));
+
+        if (coreMap.isDirty(ppn) && !clean(ppn, false))
+            return false;
+
+        invertedPageTable.remove(key);
+        coreMap.free(ppn, true);
+        return true;
+    }
+
+    /**
+     * The pageout daemon's main loop. Whenever free pages drop below the low
+     * watermark, it evicts pages until they reach the high watermark. Dirty
+     * pages are written back first, without holding <tt>memoryLock</tt>, so
+     * that faults on other pages can proceed during the write.
+     */
+    private static void pageout() {
+        memoryLock.acquire();
+
+        while (true) {
+            pageoutNeeded.sleep();
+
+            while (pageAllocator.getNumFreePages() < freeFramesHigh) {
+                int ppn = coreMap.chooseVictim();
+                if (ppn == -1)
+                    break;
+
+                if (coreMap.isDirty(ppn) && !clean(ppn, true))
+                    break;
+
+                // leave the page if it was written again during the write
+                if (coreMap.isDirty(ppn) || !evict(ppn))
+                    continue;
+
+                pageAllocator.free(ppn);
+            }
+        }
+    }
+
+    /**
+     * Write a dirty page back to swap, leaving it resident and clean. Dirty
+     * pages virtually adjacent to it in the same process, up to
+     * <tt>VMKernel.maxSwapCluster</tt> pages in all, are written back with it.
+     * Each page is stored in the swap cache if it fits; those that do not are
+     * written to the swap file with a single write. They are copied, and every
+     * frame in the cluster stays pinned until the write is done. A write to a
+     * page during the write back sets its dirty bit again.
+     *
+     * @param ppn    the frame holding the page.
+     * @param unlock <tt>true</tt> to release <tt>memoryLock</tt> during the
+     *               write.
+     * @return <tt>true</tt> if the pages were written.
+     */
+    private static boolean clean(int ppn, boolean unlock) {
+        int pid = coreMap.getPid(ppn);
+        int vpn = coreMap.getVpn(ppn);
+
+        // grow the cluster alternately forward and backward
+        int first = vpn, end = vpn + 1;
+        boolean grew = true;
+        while (grew && end - first < maxSwapCluster) {
+            grew = false;
+            if (isCleanable(pid, end)) {
+                end++;
+                grew = true;
+            }
+            if (end - first < maxSwapCluster && isCleanable(pid, first - 1)) {
+                first--;
+                grew = true;
+            }
+        }
+
+        Lib.debug(dbgVM, "cleaning pages " + first + "-" + (end - 1) + " of process " + pid);
+
+        long[] keys = new long[end - first];
+        int[] ppns = new int[end - first];
+        byte[] memory = Machine.processor().getMemory();
+
+        // pages that fit in the swap cache are done at once; the rest are
+        // written to the swap file together. Every frame in the cluster stays
+        // pinned until the write is done, so that none of them, the victim
+        // included, can be evicted or freed while memoryLock is released.
+        int count = 0;
+        for (int vpnToClean = first; vpnToClean < end; vpnToClean++) {
+            long key = PageMap.key(pid, vpnToClean);
+            int frame = invertedPageTable.get(key);
+            ppns[vpnToClean - first] = frame;
+            coreMap.pin(frame);
+
+            // later writes must go through a new TLB entry, whose dirty bit counts
+            coreMap.invalidateTLB(frame);
+            coreMap.clearDirty(frame);
+
+            if (swapCache.put(key, memory, frame * pageSize)) {
+                swapSpace.free(key);
+                continue;
+            }
+
+            keys[count++] = key;
+        }
+
+        boolean written = true;
+        if (count > 0) {
+            long[] spilled = new long[count];
+            System.arraycopy(keys, 0, spilled, 0, count);
+
+            byte[] pages = new byte[count * pageSize];
+            for (int i = 0; i < count; i++) {
+                int frame = invertedPageTable.get(spilled[i]);
+                System.arraycopy(memory, frame * pageSize, pages, i * pageSize, pageSize);
+            }
+
+            int slot = swapSpace.beginWrite(spilled);
+
+            if (unlock)
+                memoryLock.release();
+            written = swapSpace.writeSlots(slot, pages);
+            if (unlock)
+                memoryLock.acquire();
+
+            swapSpace.endWrite(spilled, slot, written);
+
+            if (!written) {
+                for (int i = 0; i < count; i++)
+                    coreMap.markDirty(invertedPageTable.get(spilled[i]));
+            }
+        }
+
+        for (int i = 0; i < ppns.length; i++)
+            coreMap.unpin(ppns[i]);
+        unpinned.wakeAll();
+
+        return written;
+    }
+
+    /**
+     * Test whether a virtual page is resident, dirty and unpinned, so that it
+     * can join a cluster being written back.
+     */
+    private static boolean isCleanable(int pid, int vpn) {
+        if (vpn < 0)
+            return false;
+
+        int ppn = invertedPageTable.get(PageMap.key(pid, vpn));
+        return ppn != -1 && coreMap.isEvictable(ppn) && coreMap.isDirty(ppn);
+    }
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
+    private static final int pageSize = Processor.pageSize;
+
     private static final char dbgVM = 'v';
 
-    public static Hashtable<Pair, Integer> invertedPageTable = new Hashtable<>();
-    public static Hashtable<Pair, CoffSection> diskPageTable = new Hashtable<>();
-    public static Hashtable<Pair, Integer> swapPageTable = new Hashtable<>();
-    
+    private static final String swapFileName = "swap";
+
+    /** The physical page holding each resident virtual page. */
+    public static PageMap invertedPageTable = new PageMap();
+    /** The index of the COFF section backing each virtual page loaded from it. */
+    public static PageMap diskPageTable = new PageMap();
+
+    /** What each physical page holds. */
+    public static CoreMap coreMap;
+
+    /**
+     * Guards the core map and the page tables above, and is held while a page
+     * is being paged in or out.
+     */
+    public static Lock memoryLock;
+
+    /** Signalled on <tt>memoryLock</tt> whenever a frame is unpinned. */
+    public static Condition2 unpinned;
+
+    /** Signalled to wake the pageout daemon. */
+    private static Condition2 pageoutNeeded;
+
+    /** The pageout daemon frees pages when fewer than this many are free. */
+    private static int freeFramesLow;
+    /** The number of free pages the pageout daemon stops at. */
+    private static int freeFramesHigh;
+
+    /** The most pages written to or read from swap with one operation. */
+    public static int maxSwapCluster;
 
-   
+    /** The swap slots of pages that have been swapped out. */
+    public static SwapSpace swapSpace;
+    /** Compressed copies of swapped-out pages, checked before the swap file. */
+    public static SwapCache swapCache;
 
-    public static OpenFile swapFile; 
+    private static OpenFile swapFile;
 
 }
 
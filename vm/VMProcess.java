@@ -5,7 +5,7 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
-import java.util.Hashtable;
+import java.util.Arrays;
 
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
@@ -20,17 +20,14 @@ public class VMProcess extends UserProcess {
 
 	/**
 	 * Save the state of this process in preparation for a context switch. Called by
-	 * <tt>UThread.saveState()</tt>.
+	 * <tt>UThread.saveState()</tt>. The TLB's used and dirty bits are saved in the
+	 * core map before the TLB is invalidated. This runs with interrupts disabled,
+	 * in the middle of a context switch, so it cannot take
+	 * <tt>VMKernel.memoryLock</tt>; it only sets core map bits, which is safe even
+	 * while another thread holds the lock.
 	 */
 	public void saveState() {
-
-		Processor processor = Machine.processor();
-
-		for (int i = 0; i < processor.getTLBSize(); i++) {
-			TranslationEntry entry = processor.readTLBEntry(i);
-			entry.valid = false;
-			processor.writeTLBEntry(i, entry);
-		}
+		VMKernel.coreMap.flushTLB();
 
 		super.saveState();
 	}
@@ -40,8 +37,6 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-
-//		super.restoreState();
 	}
 
 	/**
@@ -51,15 +46,23 @@ public class VMProcess extends UserProcess {
 	 * @return <tt>true</tt> if successful.
 	 */
 	protected boolean loadSections() {
+		readaheadEnd = new int[coff.getNumSections()];
+		readaheadPages = new int[coff.getNumSections()];
+		maxReadahead = Config.getInteger("VMProcess.maxReadahead", 8);
 
 		for (int s = 0; s < coff.getNumSections(); s++) {
+			readaheadEnd[s] = -1;
+
+			// uninitialized sections are demand-zero, like the stack and heap
 			CoffSection section = coff.getSection(s);
+			if (!section.isInitialzed() && !section.isReadOnly())
+				continue;
 
 			for (int i = 0; i < section.getLength(); i++) {
 
 				int vpn = section.getFirstVPN() + i;
 
-				VMKernel.diskPageTable.put(new Pair(getProcessId(), vpn), section);
+				VMKernel.diskPageTable.put(PageMap.key(getProcessId(), vpn), s);
 			}
 		}
 
@@ -71,7 +74,42 @@ public class VMProcess extends UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
+		unmapPages(0, numPages);
+	}
+
+	/**
+	 * Unmap a range of virtual pages, freeing their frames and swap slots.
+	 *
+	 * @param firstVpn the first page to unmap.
+	 * @param endVpn   the page after the last one to unmap.
+	 */
+	protected void unmapPages(int firstVpn, int endVpn) {
+		VMKernel.memoryLock.acquire();
+
+		// the TLB may also map some of the pages to the zero page
+		VMKernel.coreMap.invalidateTLB(VMKernel.zeroPage);
+
+		for (int vpn = firstVpn; vpn < endVpn; vpn++) {
+			long key = PageMap.key(getProcessId(), vpn);
+
+			// wait out any write back of the page by the pageout daemon
+			int ppn;
+			while ((ppn = VMKernel.invertedPageTable.get(key)) != -1 && VMKernel.coreMap.isPinned(ppn))
+				VMKernel.unpinned.sleep();
+
+			if (ppn != -1) {
+				VMKernel.invertedPageTable.remove(key);
+				VMKernel.coreMap.invalidateTLB(ppn);
+				VMKernel.coreMap.free(ppn, false);
+				VMKernel.pageAllocator.free(ppn);
+			}
+
+			VMKernel.swapSpace.free(key);
+			VMKernel.swapCache.free(key);
+			VMKernel.diskPageTable.remove(key);
+		}
+
+		VMKernel.memoryLock.release();
 	}
 
 	/**
@@ -85,251 +123,370 @@ public class VMProcess extends UserProcess {
 		Processor processor = Machine.processor();
 
 		switch (cause) {
-
 			case Processor.exceptionTLBMiss:
+				int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+				if (!handleTLBMiss(vpn))
+					super.handleException(cause);
+				break;
 
-				int vAddr = processor.readRegister(Processor.regBadVAddr); // this is the vaddr that caused the TLB miss
-				int vpn = Processor.pageFromAddress(vAddr);
-
-				Pair pair = new Pair(this.getProcessId(), vpn);
-
-				Integer ppn = VMKernel.invertedPageTable.get(pair);
-				byte[] buffer = new byte[Processor.pageSize + 10];
-				byte[] memory = processor.getMemory();
-
-				if (ppn == null) {
-					// page fault
-
-					// check if in swap file
-					Integer swapPage = (VMKernel.swapPageTable.get(pair));
-
-					if (VMKernel.freePhysicalPages.size() == 0) {
-						// dump memory page into swap space
-
-						TranslationEntry entry = processor.readTLBEntry(0);
-
-						if (entry.dirty) {
-							VMKernel.swapFile.write(VMKernel.swapFile.length(), memory, entry.ppn, Processor.pageSize);
-						}
-						VMKernel.freePhysicalPages.push(entry.ppn);
-
-						entry.valid = false;
-						processor.writeTLBEntry(0, entry);
-
-					}
-					ppn = VMKernel.freePhysicalPages.removeLast();
-
-					if (swapPage != null) {
-
-						VMKernel.swapFile.read(swapPage, buffer, 0, Processor.pageSize);
-
-						System.arraycopy(buffer, 0, memory, ppn, Processor.pageSize);
-
-					} else {
-
-						CoffSection section = VMKernel.diskPageTable.get(new Pair(getProcessId(), vpn));
-						if (section != null){
-							//cannot read from disk
-							section.loadPage(vpn - section.getFirstVPN(), ppn);
-						}
-
-
-					}
-					VMKernel.invertedPageTable.put(new Pair(getProcessId(), vpn), ppn);
-
-
-				}
+			case Processor.exceptionReadOnly:
+				vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+				if (!handleZeroPageWrite(vpn))
+					super.handleException(cause);
+				break;
 
-				int replaceIndex = -1; // use replacement policy to figure out this index
+			default:
+				super.handleException(cause);
+				break;
+		}
+	}
 
-				int unusedIndex = -1;
+	/**
+	 * Load the translation for a virtual page into the TLB, paging the page in
+	 * first if it is not resident. A demand-zero page that has never been
+	 * written is mapped read-only to the shared zero page instead.
+	 *
+	 * @param vpn the virtual page that missed in the TLB.
+	 * @return <tt>true</tt> if the page is now in the TLB, or <tt>false</tt> if
+	 *         it is outside this process's address space or could not be paged
+	 *         in.
+	 */
+	private boolean handleTLBMiss(int vpn) {
+		if (vpn < 0 || vpn >= numPages)
+			return false;
 
-				int cleanIndex = -1;
+		VMKernel.memoryLock.acquire();
 
-				// first, search if any invalid entry exists
-				for (int i = 0; i < processor.getTLBSize(); i++) {
-					TranslationEntry entry = processor.readTLBEntry(i);
-					if (!entry.valid) {
-						replaceIndex = i;
-						break;
-					}
+		if (isUntouchedZeroPage(vpn)) {
+			installTLBEntry(new TranslationEntry(vpn, VMKernel.zeroPage, true, true, false, false));
+			VMKernel.memoryLock.release();
+			return true;
+		}
 
-					if (!entry.used) {
-						unusedIndex = i;
+		int ppn = getFrame(vpn, false);
+		if (ppn == -1) {
+			VMKernel.memoryLock.release();
+			return false;
+		}
 
-					}
+		installTLBEntry(new TranslationEntry(vpn, ppn, true, isReadOnly(vpn), false, false));
 
-					if (!entry.dirty) {
-						cleanIndex = i;
-					}
-				}
+		VMKernel.memoryLock.release();
+		return true;
+	}
 
-				if (replaceIndex < 0) {
+	/**
+	 * Give a demand-zero page mapped to the zero page a frame of its own, on
+	 * the first write to it.
+	 *
+	 * @param vpn the virtual page being written.
+	 * @return <tt>true</tt> if the page is now writable in the TLB, or
+	 *         <tt>false</tt> if it is really read-only or no frame could be
+	 *         found.
+	 */
+	private boolean handleZeroPageWrite(int vpn) {
+		if (vpn < 0 || vpn >= numPages || isReadOnly(vpn))
+			return false;
 
-					if (unusedIndex < 0) {
-						// no invalid and unused entries found, so try replacing one where
+		VMKernel.memoryLock.acquire();
 
-						if (cleanIndex < 0) {
-							replaceIndex = 0;
-						} else {
-							replaceIndex = cleanIndex;
-						}
+		int ppn = getFrame(vpn, true);
+		if (ppn != -1)
+			installTLBEntry(new TranslationEntry(vpn, ppn, true, false, false, false));
 
-					} else {
-						replaceIndex = unusedIndex;
-					}
+		VMKernel.memoryLock.release();
+		return ppn != -1;
+	}
 
-				}
+	/**
+	 * Write a translation into the TLB, replacing any entry for the same
+	 * virtual page, or else an invalid entry, or else taking turns. The caller
+	 * must hold <tt>VMKernel.memoryLock</tt>.
+	 *
+	 * @param entry the translation to add.
+	 */
+	private void installTLBEntry(TranslationEntry entry) {
+		Processor processor = Machine.processor();
 
-				processor.writeTLBEntry(replaceIndex, new TranslationEntry(vpn, ppn, true, false, false, false));
-				break;
-			default:
-				super.handleException(cause);
+		int index = -1;
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry old = processor.readTLBEntry(i);
+			if (old.valid && old.vpn == entry.vpn) {
+				index = i;
 				break;
+			}
+			if (!old.valid && index == -1)
+				index = i;
+		}
+		if (index == -1) {
+			index = tlbHand;
+			tlbHand = (tlbHand + 1) % processor.getTLBSize();
 		}
+
+		VMKernel.coreMap.syncEntry(processor.readTLBEntry(index));
+		processor.writeTLBEntry(index, entry);
 	}
 
+	/**
+	 * Test whether a virtual page is demand-zero and has no contents yet: it
+	 * is not resident, has no copy in swap, and is not loaded from the
+	 * executable. The caller must hold <tt>VMKernel.memoryLock</tt>.
+	 */
+	private boolean isUntouchedZeroPage(int vpn) {
+		long key = PageMap.key(getProcessId(), vpn);
 
-    public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+		return !VMKernel.invertedPageTable.containsKey(key) && !VMKernel.swapCache.contains(key)
+				&& !VMKernel.swapSpace.contains(key) && !VMKernel.diskPageTable.containsKey(key);
+	}
 
-        byte[] memory = Machine.processor().getMemory();
-        if (vaddr < 0 || vaddr > getMaxVirtualAddr())
-            return 0;
-        int amount = Math.min(length, getMaxVirtualAddr() - vaddr + 1);
+	/**
+	 * Return the frame holding a virtual page that is about to be accessed,
+	 * paging it in if it is not resident. An access to a resident page is
+	 * reported to the core map; a page that is paged in starts out referenced.
+	 * A page that is about to be written loses its copies in swap, since they
+	 * will be stale. The caller must hold <tt>VMKernel.memoryLock</tt>.
+	 *
+	 * @param vpn     the virtual page.
+	 * @param writing <tt>true</tt> if the page is about to be written.
+	 * @return the frame, or -1 if the page could not be paged in.
+	 */
+	private int getFrame(int vpn, boolean writing) {
+		long key = PageMap.key(getProcessId(), vpn);
+
+		int ppn = VMKernel.invertedPageTable.get(key);
+		if (ppn != -1) {
+			VMKernel.coreMap.markUsed(ppn, writing);
+			if (writing) {
+				VMKernel.swapSpace.free(key);
+				VMKernel.swapCache.free(key);
+			}
+			return ppn;
+		}
 
-        int lastPage = (vaddr + amount) / pageSize;
-        int firstPage = vaddr / pageSize;
-        int pagesToRead = lastPage - firstPage + 1;
+		ppn = VMKernel.allocateFrame();
+		if (ppn == -1)
+			return -1;
+
+		Lib.debug(dbgVM, "paging in page " + vpn + " of process " + getProcessId());
+
+		// a page comes from swap if it was ever swapped out, and otherwise from
+		// the executable, or is zero-filled
+		int s = VMKernel.diskPageTable.get(key);
+		boolean fromCache = VMKernel.swapCache.contains(key);
+		boolean fromSwap = fromCache || VMKernel.swapSpace.contains(key);
+		if (fromCache) {
+			if (!VMKernel.swapCache.take(key, Machine.processor().getMemory(), ppn * pageSize)) {
+				VMKernel.pageAllocator.free(ppn);
+				return -1;
+			}
+		} else if (fromSwap) {
+			if (!swapIn(vpn, ppn)) {
+				VMKernel.pageAllocator.free(ppn);
+				return -1;
+			}
+		} else if (s != -1) {
+			CoffSection section = coff.getSection(s);
+			section.loadPage(vpn - section.getFirstVPN(), ppn);
+		} else {
+			byte[] memory = Machine.processor().getMemory();
+			Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+
+			// the TLB may still map the page to the zero page, which would hide
+			// whatever is written to its new frame
+			VMKernel.coreMap.invalidateTLB(VMKernel.zeroPage);
+		}
 
-        int startOffset = vaddr % pageSize;
+		// a page taken from the swap cache has no other copy left
+		VMKernel.coreMap.load(ppn, getProcessId(), vpn);
+		if (writing || fromCache)
+			VMKernel.coreMap.markDirty(ppn);
+		if (writing)
+			VMKernel.swapSpace.free(key);
 
-        int remaining = amount;
+		VMKernel.invertedPageTable.put(key, ppn);
 
-        int bytesRead = 0;
+		if (!fromSwap && s != -1)
+			readAhead(vpn, s);
 
-		Processor processor = Machine.processor();
-        for (int i = 0; i <= pagesToRead; i++) {
-
-            int vpn = firstPage + i;
-            int readLimit = Math.min(pageSize, remaining);
-
-            if(i == 0) {
-                readLimit = Math.min(pageSize - startOffset - 1 , amount);
-                
-            }
-
-            remaining -= readLimit;
-
-			TranslationEntry te = processor.readTLBEntry(0);
-
-			boolean found = false;
-			int t=0;
-			while (!found){
-				for (t = 0; t< processor.getTLBSize(); t++){
-					te = processor.readTLBEntry(t);
-					if (te.vpn == vpn && te.valid){
-						found = true;
-						break;
-					}
-				}
-				if (!found){
-					processor.writeRegister(Processor.regBadVAddr, vpn*pageSize);
-					handleException(Processor.exceptionTLBMiss);
-
-				}
-			}
+		return ppn;
+	}
 
+	/**
+	 * Read a page back from swap. The pages that follow it, for as long as they
+	 * are not resident and occupy the slots that follow its slot, were written
+	 * in the same cluster, and are read with it in a single read, up to
+	 * <tt>VMKernel.maxSwapCluster</tt> pages in all. They are only loaded into
+	 * free frames, and start out unreferenced. The caller must hold
+	 * <tt>VMKernel.memoryLock</tt>.
+	 *
+	 * @param vpn the page to read.
+	 * @param ppn the frame to read it into.
+	 * @return <tt>true</tt> if the page was read.
+	 */
+	private boolean swapIn(int vpn, int ppn) {
+		int slot = VMKernel.swapSpace.getSlot(PageMap.key(getProcessId(), vpn));
 
-            te.used = true;
-			processor.writeTLBEntry(t, te);
+		int[] ppns = new int[VMKernel.maxSwapCluster];
+		ppns[0] = ppn;
 
-            int start = te.ppn * pageSize; // if page isnt first page, start will always be start of page
-            if (i == 0) {
-                start += startOffset;
+		int count = 1;
+		while (count < ppns.length && vpn + count < numPages) {
+			long key = PageMap.key(getProcessId(), vpn + count);
+			if (VMKernel.swapSpace.getSlot(key) != slot + count || VMKernel.invertedPageTable.containsKey(key))
+				break;
 
-            }
+			int frame = VMKernel.allocateFreeFrame();
+			if (frame == -1)
+				break;
 
-           
+			ppns[count++] = frame;
+		}
 
-            System.arraycopy(memory, start, data, offset + bytesRead, readLimit);
-            bytesRead += readLimit;
+		byte[] pages = new byte[count * pageSize];
+		if (!VMKernel.swapSpace.readSlots(slot, pages)) {
+			for (int i = 1; i < count; i++)
+				VMKernel.pageAllocator.free(ppns[i]);
+			return false;
+		}
 
-        }
+		byte[] memory = Machine.processor().getMemory();
+		for (int i = 0; i < count; i++)
+			System.arraycopy(pages, i * pageSize, memory, ppns[i] * pageSize, pageSize);
 
-        // System.arraycopy(memory, vaddr, data, offset, amounVt);
+		for (int i = 1; i < count; i++) {
+			VMKernel.coreMap.load(ppns[i], getProcessId(), vpn + i);
+			VMKernel.coreMap.clearReferenced(ppns[i]);
+			VMKernel.invertedPageTable.put(PageMap.key(getProcessId(), vpn + i), ppns[i]);
+		}
 
-        return amount;
+		return true;
 	}
 
-    public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+	/**
+	 * Load pages following a page just faulted in from a COFF section, so that
+	 * a process reading through the section takes fewer faults. The number of
+	 * pages loaded ahead starts at zero, doubles (up to
+	 * <tt>VMProcess.maxReadahead</tt>) each time a fault lands on the page just
+	 * past the previous window, and falls back to zero on any other fault in
+	 * the section. Pages are only loaded into free frames, never by evicting
+	 * another page, and start out unreferenced, so they are the first to go if
+	 * they are never used. The caller must hold <tt>VMKernel.memoryLock</tt>.
+	 *
+	 * @param vpn the page that was faulted in.
+	 * @param s   the index of the section it belongs to.
+	 */
+	private void readAhead(int vpn, int s) {
+		if (vpn == readaheadEnd[s])
+			readaheadPages[s] = Math.min(maxReadahead, Math.max(1, readaheadPages[s] * 2));
+		else
+			readaheadPages[s] = 0;
+
+		CoffSection section = coff.getSection(s);
+		int end = Math.min(vpn + 1 + readaheadPages[s], section.getFirstVPN() + section.getLength());
+
+		int next;
+		for (next = vpn + 1; next < end; next++) {
+			long key = PageMap.key(getProcessId(), next);
+			if (VMKernel.invertedPageTable.containsKey(key) || VMKernel.swapCache.contains(key)
+					|| VMKernel.swapSpace.contains(key))
+				continue;
+
+			int ppn = VMKernel.allocateFreeFrame();
+			if (ppn == -1)
+				break;
 
-        byte[] memory = Machine.processor().getMemory();
-        if (vaddr < 0 || vaddr > getMaxVirtualAddr())
-            return 0;
-        int amount = Math.min(length, getMaxVirtualAddr() - vaddr + 1);
+			section.loadPage(next - section.getFirstVPN(), ppn);
 
-        int lastPage = (vaddr + amount) / pageSize;
-		int firstPage = vaddr / pageSize;
-        int pagesToRead = lastPage - firstPage + 1;
+			VMKernel.coreMap.load(ppn, getProcessId(), next);
+			VMKernel.coreMap.clearReferenced(ppn);
+			VMKernel.invertedPageTable.put(key, ppn);
+		}
 
-        int startOffset = vaddr % pageSize;
+		readaheadEnd[s] = next;
+	}
 
-        int remaining = amount;
+	/**
+	 * Test whether a virtual page belongs to a read-only COFF section.
+	 */
+	private boolean isReadOnly(int vpn) {
+		int s = VMKernel.diskPageTable.get(PageMap.key(getProcessId(), vpn));
+		return s != -1 && coff.getSection(s).isReadOnly();
+	}
 
-        int bytesWritten = 0;
+	/**
+	 * Demand-paged processes do not support <tt>fork()</tt>: their pages are not
+	 * reference counted in the page allocator, so they cannot be shared.
+	 *
+	 * @return -1.
+	 */
+	protected int handleFork() {
+		return -1;
+	}
 
-		Processor processor = Machine.processor();
-        for (int i = 0; i <= pagesToRead; i++) {
-
-            int vpn = firstPage + i;
-            int writeLimit = Math.min(pageSize, remaining);
-
-            if(i == 0) {
-                writeLimit = Math.min(pageSize - startOffset - 1, amount);
-                
-            }
-
-            remaining -= writeLimit;
-
-			TranslationEntry te = processor.readTLBEntry(0);
-			boolean found = false;
-			int t = 0;
-			while (!found){
-				for (t = 0; t< processor.getTLBSize(); t++){
-					te = processor.readTLBEntry(t);
-					if (te.vpn == vpn && te.valid){
-						found = true;
-						break;
-					}
-				}
-				if (!found){
-					processor.writeRegister(Processor.regBadVAddr, vpn*pageSize);
-					handleException(Processor.exceptionTLBMiss);
-
-				}
-			}
+	/**
+	 * Return a translation for the specified virtual page, paging the page in
+	 * if necessary. The page's frame is pinned until <tt>releasePage()</tt> is
+	 * called, so that it cannot be evicted while the kernel is copying to or
+	 * from it.
+	 *
+	 * @param vpn     the virtual page to access.
+	 * @param writing <tt>true</tt> if the page is about to be written.
+	 * @return the translation for the page, or <tt>null</tt> if the page lies
+	 *         outside this process's address space, is read-only and
+	 *         <i>writing</i> is set, or could not be paged in.
+	 */
+	protected TranslationEntry translatePage(int vpn, boolean writing) {
+		if (vpn < 0 || vpn >= numPages)
+			return null;
 
-            te.used = true;
-            te.dirty = true;
-			processor.writeTLBEntry(t, te);
+		boolean readOnly = isReadOnly(vpn);
+		if (writing && readOnly)
+			return null;
 
-            int start = te.ppn * pageSize; // if page isnt first page, start will always be start of page
-            if (i == 0) {
-                start += startOffset;
+		VMKernel.memoryLock.acquire();
 
-            }
+		// reading a page that was never written needs no frame
+		if (!writing && isUntouchedZeroPage(vpn)) {
+			VMKernel.memoryLock.release();
+			return new TranslationEntry(vpn, VMKernel.zeroPage, true, true, true, false);
+		}
+
+		int ppn = getFrame(vpn, writing);
+		if (ppn != -1)
+			VMKernel.coreMap.pin(ppn);
 
-            System.arraycopy(data, offset + bytesWritten, memory, start, writeLimit);
-            bytesWritten += writeLimit;
+		VMKernel.memoryLock.release();
 
-        }
+		if (ppn == -1)
+			return null;
 
-        // System.arraycopy(data, offset, memory, vaddr, amount);
+		return new TranslationEntry(vpn, ppn, true, readOnly, true, writing);
+	}
 
-        return amount;
-    }
+	/**
+	 * Unpin a frame pinned by <tt>translatePage()</tt>.
+	 *
+	 * @param vpn the virtual page that was accessed.
+	 * @param ppn the frame it was mapped to.
+	 */
+	protected void releasePage(int vpn, int ppn) {
+		if (ppn == VMKernel.zeroPage)
+			return;
+
+		VMKernel.memoryLock.acquire();
+		VMKernel.coreMap.unpin(ppn);
+		VMKernel.unpinned.wakeAll();
+		VMKernel.memoryLock.release();
+	}
 
+	/** The TLB entry to replace next when every entry is valid. */
+	private int tlbHand = 0;
 
+	/** For each section, the page just past the last one loaded ahead. */
+	private int[] readaheadEnd;
+	/** For each section, the number of pages last loaded ahead. */
+	private int[] readaheadPages;
+	private int maxReadahead;
 
 	private static final int pageSize = Processor.pageSize;
 	private static final char dbgProcess = 'a';